@@ -0,0 +1,133 @@
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+//
+// Shares bandwidth between the data connections that are open at the same
+// time. Every transfer is a flow with its own TokenBucket. The global limit is
+// divided between the open flows by the weight of their traffic class, so an
+// interactive get keeps most of the link while a bulk mirror runs, and no
+// flow goes faster than the per-transfer limit. Shares are recomputed whenever
+// a flow opens or closes or a limit changes.
+//
+
+
+public class BandwidthScheduler
+{
+    static final String INTERACTIVE = "interactive";
+    static final String BULK = "bulk";
+
+    private long globalRate;   // bytes per second over all flows, 0 for no limit
+    private long transferRate; // bytes per second for each flow, 0 for no limit
+    private final Map<String, Integer> weights = new LinkedHashMap<>();
+    private final Set<Flow> flows = new LinkedHashSet<>();
+
+    BandwidthScheduler(){
+        weights.put(INTERACTIVE, 4);
+        weights.put(BULK, 1);
+    }
+
+    /**
+     * One transfer's share of the bandwidth. Close it when the transfer ends so the others get its share.
+     */
+    final class Flow implements Closeable {
+        final String trafficClass;
+        private final TokenBucket bucket = new TokenBucket(0);
+
+        private Flow(String trafficClass){
+            this.trafficClass = trafficClass;
+        }
+
+        /**
+         * Waits until bytes more may be moved at this flow's rate.
+         * @throws InterruptedIOException if interrupted while waiting
+         */
+        void take(long bytes) throws InterruptedIOException {
+            bucket.take(bytes);
+        }
+
+        /**
+         * @return the most bytes worth moving at once at this flow's rate
+         */
+        int burst(){
+            return bucket.burst();
+        }
+
+        @Override
+        public void close(){
+            synchronized (BandwidthScheduler.this) {
+                if (flows.remove(this)) rebalance();
+            }
+        }
+    }
+
+    /**
+     * Opens a flow for a transfer of the given traffic class, e.g. INTERACTIVE or BULK.
+     */
+    synchronized Flow open(String trafficClass){
+        Flow flow = new Flow(trafficClass);
+        flows.add(flow);
+        rebalance();
+        return flow;
+    }
+
+    // Gives every open flow its weighted share of the global rate, capped by the per-transfer rate
+    private void rebalance(){
+        long totalWeight = 0;
+        for (Flow flow : flows) totalWeight += weight(flow.trafficClass);
+        for (Flow flow : flows) {
+            long rate = transferRate;
+            if (globalRate > 0) {
+                long share = Math.max(1, globalRate * weight(flow.trafficClass) / totalWeight);
+                rate = rate == 0 ? share : Math.min(rate, share);
+            }
+            flow.bucket.setRate(rate);
+        }
+    }
+
+    private int weight(String trafficClass){
+        return weights.getOrDefault(trafficClass, 1);
+    }
+
+    /**
+     * Sets the limit over all transfers together in bytes per second, 0 for none.
+     */
+    synchronized void setGlobalRate(long rate){
+        globalRate = rate;
+        rebalance();
+    }
+
+    /**
+     * Sets the limit for each single transfer in bytes per second, 0 for none.
+     */
+    synchronized void setTransferRate(long rate){
+        transferRate = rate;
+        rebalance();
+    }
+
+    /**
+     * Sets the weight of a traffic class when the global rate is shared out.
+     */
+    synchronized void setWeight(String trafficClass, int weight){
+        weights.put(trafficClass, weight);
+        rebalance();
+    }
+
+    // Describes a rate
+    private static String describe(long rate){
+        return rate == 0 ? "off" : rate + " bytes/s";
+    }
+
+    @Override
+    public synchronized String toString(){
+        StringBuilder description = new StringBuilder("global ").append(describe(globalRate))
+                .append(", transfer ").append(describe(transferRate));
+        for (Map.Entry<String, Integer> weight : weights.entrySet()) {
+            description.append(", ").append(weight.getKey()).append(" weight ").append(weight.getValue());
+        }
+        return description.append(", ").append(flows.size()).append(" active").toString();
+    }
+}
@@ -2,6 +2,32 @@ import java.lang.System;
 import java.io.IOException;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 //
 // This is an implementation of a simplified version of a command
 // line ftp client. The program always takes two arguments
@@ -13,14 +39,52 @@ public class BasicFTP
     static final int MAX_LEN = 255;
     static final int ARG_CNT = 2;
     static final int ARG_NO_PORT = 1;
+    static final int TRANSFER_BUF_SIZE = 256 * 1024;
+    static final String CHECKPOINT_SUFFIX = ".ckpt";
+    static final int DEFAULT_SEGMENTS = 4;
+    static final int MAX_SEGMENTS = 16;
+    static final int DEFAULT_MIRROR_WORKERS = 4;
+    static final long PROGRESS_INTERVAL = 500; // milliseconds between pget progress updates
+    static final long KEEPALIVE_INTERVAL = 30000; // idle pooled sessions are checked with NOOP after this
+    static final long MAX_IDLE_TIME = 300000;     // idle pooled sessions are closed after this
+    static final int MAX_VERIFY_ATTEMPTS = 3;     // fetches of a file or range whose checksum keeps mismatching
 
-    // resources
-    static Socket socket = new Socket();
+    // exit codes; a batch run exits with the highest one of its scripts
+    static final int EXIT_OK = 0;
+    static final int EXIT_COMMAND_FAILED = 1; // a command failed, the rest of the script still ran
+    static final int EXIT_CONNECTION = 2;     // the control connection could not be opened or was lost
+    static final int EXIT_USAGE = 3;          // bad arguments or an unreadable script
+    static final int EXIT_INTERNAL = 4;       // unexpected processing error
 
-    static PrintWriter clientOut;
-    static BufferedReader ftpIn;
+    // resources
+    // the control connection of what runs on this thread: the interactive loop or one batch worker
+    private static final ThreadLocal<FtpSession> sessions = new ThreadLocal<>();
     static BufferedReader clientIn;
 
+    // the script a batch worker is running, not set for the interactive loop
+    private static final ThreadLocal<Script> scripts = new ThreadLocal<>();
+
+    // connection details, kept so extra control connections can log in the same way
+    static String serverAddress;
+    static int serverPort;
+
+    // runs transfers that need their own control connection, each on a logged in session from its pool
+    static final FtpEngine engine = new FtpEngine(MAX_SEGMENTS, KEEPALIVE_INTERVAL, MAX_IDLE_TIME,
+            FtpEngine.DEFAULT_THREADS);
+
+    // reused by every download on this thread so transfers do not allocate per file; batch workers each
+    // have their own, they download at the same time
+    private static final ThreadLocal<ByteBuffer> transferBuffers =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(TRANSFER_BUF_SIZE));
+
+    // running totals of command, connect and transfer timings, dumped by the metrics command
+    static final MetricsRegistry metrics = new MetricsRegistry();
+
+
+    // Returns the control connection of this thread
+    private static FtpSession session(){
+        return sessions.get();
+    }
 
     // Returns a String array containing each substring from str
     private static String[] splitString(String str){
@@ -28,50 +92,82 @@ public class BasicFTP
     }
 
     
+    /**
+     * Prints a client error message and counts its code, the first word of the message.
+     * @param message error code followed by its description, e.g. "0x001 Invalid commad."
+     */
+    private static void printError(String message){
+        System.out.println(message);
+        int space = message.indexOf(' ');
+        String code = space < 0 ? message : message.substring(0, space);
+        FtpSession.defaultMetrics.error(code);
+        scriptFailed(code);
+    }
+
+    // Marks the script command running on this thread, if there is one, as failed with the error code
+    private static void scriptFailed(String code){
+        Script script = scripts.get();
+        if (script != null && script.error == null) script.error = code;
+    }
+
+    /**
+     * Ends the program with the given status, or only the running script when called from a batch worker.
+     */
+    private static void exit(int status){
+        if (scripts.get() != null) throw new ScriptExit(status);
+        System.exit(status);
+    }
+
     /**
      * Handles the first response from the server and prints it.
      */
     private static void handleFirst(){
-        String fromServer;
+        handleServerResponse();
+    }
+
+    /**
+     * Takes the server response from the session and prints every line of it. Multi-line responses are
+     * recognised by FtpReply as RFC 959 describes. When the control connection has been lost, it is opened
+     * again and brought back to the same login, directory and type before null is returned.
+     * RFC 959 for more info: https://www.ietf.org/rfc/rfc959.txt
+     * @return the last line of the response, or null if the connection was lost and the command has to be
+     *         given again
+     */
+    private static String handleServerResponse(){
         try {
-            if ((fromServer = ftpIn.readLine()) != null) {
-                System.out.println("<-- " + fromServer);
+            FtpReply reply = session().readReply();
+            for (String line : reply.lines) {
+                System.out.println("<-- " + line);
             }
+            return reply.last();
         } catch (IOException e) {
-            System.out.println("0xFFFD Control connection I/O error, closing control connection.");
-            System.exit(0);
+            reconnect();
+            return null;
         }
     }
 
     /**
-     * Takes the server response from the ftpIn BufferedReader and prints it.
+     * Replaces a lost control connection with a new one in the same state, retrying with backoff, and ends
+     * the program (or the running script) when that fails too.
      */
-    private static void handleServerResponse(){
-        String fromServer;
-        try {
-            if ((fromServer = ftpIn.readLine()) != null) {
-                // check if there is a multi-line response: if there is a dash right after the response code or
-                // just check if the space-splitted array's first element has more than 3 chars
-                // RFC 959 for more info: https://www.ietf.org/rfc/rfc959.txt
-                String[] firstLine = fromServer.split(" ");
-                if (firstLine[0].length() != 3){ // it is a multi-line response
-                    String responseCode = fromServer.split("-")[0];
-                    System.out.println("<-- " + fromServer);
-                    while((fromServer = ftpIn.readLine()) != null) {
-                        // multi-line response ends with the first response code provided
-                        if (fromServer.split(" ")[0].equals(responseCode)) break;
-                        // otherwise print each line
-                        System.out.println("<-- " + fromServer);
-                    }
-                    System.out.println("<-- " + fromServer);
-                } else {
-                    System.out.println("<-- " + fromServer);
+    private static void reconnect(){
+        printError("0xFFFD Control connection I/O error, closing control connection.");
+        if (session().retry.attempts > 1) {
+            System.out.println("Reconnecting to " + serverAddress + " port " + serverPort + ".");
+            try {
+                String refused = session().reconnect();
+                System.out.println("Reconnected.");
+                if (refused != null) {
+                    System.out.println("<-- " + refused);
+                    System.out.println("Could not return to the working directory; staying in the last one reached.");
                 }
+                return;
+            } catch (IOException e) {
+                printError("0xFFFC Connection Error on server: " + serverAddress + " port: " + serverPort);
             }
-        } catch (IOException e) {
-            System.out.println("0xFFFD Control connection I/O error, closing control connection.");
-            System.exit(0);
         }
+        session().close();
+        exit(EXIT_CONNECTION);
     }
 
     /**
@@ -84,14 +180,14 @@ public class BasicFTP
             String user = args[1];
 
             System.out.println("--> USER " + user);
-            clientOut.print("USER "+ user + "\r\n");
-            clientOut.flush();
+            session().send("USER "+ user);
+            session().user = user;
 
             handleServerResponse();
 
         } else {
             // incorrect number of arguments
-            System.out.println("0x002 Incorrect number of arguments.");
+            printError("0x002 Incorrect number of arguments.");
         }
     }
 
@@ -106,14 +202,14 @@ public class BasicFTP
             String password = args[1];
 
             System.out.println("--> PASS " + password);
-            clientOut.print("PASS "+ password + "\r\n");
-            clientOut.flush();
+            session().send("PASS "+ password);
+            session().password = password;
 
             handleServerResponse();
 
         } else {
             // incorrect number of arguments
-            System.out.println("0x002 Incorrect number of arguments.");
+            printError("0x002 Incorrect number of arguments.");
         }
     }
 
@@ -126,27 +222,27 @@ public class BasicFTP
      */
     private static void handleQuit(String[] args){
         if (args.length == 1) { // check if the command is provided correctly
-            if (!socket.isClosed() || socket.isConnected()) {
+            if (session().isConnected()) {
                 System.out.println("--> QUIT");
-                clientOut.print("QUIT\r\n");
-                clientOut.flush();
+                session().send("QUIT");
 
                 handleServerResponse();
             }
+            session().close();
+            // a script only ends itself, the other scripts still need the engine
+            if (scripts.get() != null) exit(EXIT_OK);
             // close the resources then exit.
             try {
-                socket.close();
-                ftpIn.close();
+                engine.close();
                 clientIn.close();
-                clientOut.close();
-                System.exit(0);
+                System.exit(EXIT_OK);
             } catch (IOException exception) {
-                System.out.println("0xFFFD Control connection I/O error, closing control connection.");
-                System.exit(0);
+                printError("0xFFFD Control connection I/O error, closing control connection.");
+                System.exit(EXIT_CONNECTION);
             }
         } else {
             // incorrect number of arguments
-            System.out.println("0x002 Incorrect number of arguments.");
+            printError("0x002 Incorrect number of arguments.");
         }
     }
 
@@ -161,14 +257,16 @@ public class BasicFTP
             String dir = args[1];
 
             System.out.println("--> CWD " + dir);
-            clientOut.print("CWD "+ dir + "\r\n");
-            clientOut.flush();
+            session().send("CWD "+ dir);
 
-            handleServerResponse();
+            String fromServer = handleServerResponse();
+            if (fromServer != null && fromServer.startsWith("250")) {
+                session().changedDirectory(dir);
+            }
 
         } else {
             // incorrect number of arguments
-            System.out.println("0x002 Incorrect number of arguments.");
+            printError("0x002 Incorrect number of arguments.");
         }
     }
 
@@ -181,333 +279,1680 @@ public class BasicFTP
         if (args.length == 1) {
 
             System.out.println("--> FEAT");
-            clientOut.print("FEAT" + "\r\n");
-            clientOut.flush();
+            session().send("FEAT");
 
             handleServerResponse();
 
         } else {
             // incorrect number of arguments
-            System.out.println("0x002 Incorrect number of arguments.");
+            printError("0x002 Incorrect number of arguments.");
         }
     }
 
     /**
-     * Handles the dir command: establishes a data connection and retrieves a list of files in the current
-     * working directory by sending PASV and LIST commands to the server
+     * Handles the pipeline command: "pipeline on" lets independent commands such as TYPE, SIZE, MDTM, PASV and
+     * USER/PASS be sent together and their replies matched in order afterwards, on this connection and on
+     * the pooled ones; "pipeline off" goes back to one round trip per command. Applies to this session and
+     * the transfers it starts only.
      * @param args
      */
-    private static void handleDir(String[] args){
-        if (args.length == 1) {
-            String fromServer;
-            String ip;
-            int hostNum;
-            Socket dataSocket = new Socket();
+    private static void handlePipeline(String[] args){
+        if (args.length == 2 && (args[1].equals("on") || args[1].equals("off"))) {
+            session().pipelining = args[1].equals("on");
+            System.out.println("Pipelining " + args[1] + ".");
+        } else {
+            // incorrect number of arguments
+            printError("0x002 Incorrect number of arguments.");
+        }
+    }
 
-            System.out.println("--> PASV");
-            clientOut.print("PASV" + "\r\n");
-            clientOut.flush();
+    /**
+     * Handles the verify command: "verify on" checks get, reget and pget downloads against a checksum sidecar
+     * next to the local file (name.sha256, name.md5, name.crc32c, ...) or the server's HASH, XCRC or XMD5,
+     * and fetches what does not match again; "verify off" skips the check.
+     * @param args
+     */
+    private static void handleVerify(String[] args){
+        if (args.length == 2 && (args[1].equals("on") || args[1].equals("off"))) {
+            session().verify = args[1].equals("on");
+            System.out.println("Verification " + args[1] + ".");
+        } else {
+            // incorrect number of arguments
+            printError("0x002 Incorrect number of arguments.");
+        }
+    }
 
-            try {
-                if ((fromServer = ftpIn.readLine()) != null) {
-                    System.out.println("<-- " + fromServer);
-                    if (fromServer.split(" ")[0].equals("227")) { // entering passive mode; parse the ip and host
-                        String ipAndHost = fromServer.split("\\(")[1];
-                        String[] arguments = ipAndHost.split(",");
-                        // the last number will have additional ")" so split that as well
-                        arguments[5] = arguments[5].split("\\)")[0];
-                        // get the ip and host to make the connection
-                        ip = arguments[0] + "." + arguments[1] + "." + arguments[2] + "." + arguments[3];
-                        hostNum = (Integer.parseInt(arguments[4]) * 256) + Integer.parseInt(arguments[5]);
-
-
-                        try{
-                            dataSocket.connect(new InetSocketAddress(ip, hostNum), 10000);
-                            BufferedReader dataSocketIn = new BufferedReader(new InputStreamReader(dataSocket.getInputStream()));
-                            String fromDataSocket;
-
-                            // send the list command
-                            System.out.println("--> LIST");
-                            clientOut.print("LIST" + "\r\n");
-                            clientOut.flush();
-                            handleServerResponse();
-
-                            // print the response
-                            while((fromDataSocket = dataSocketIn.readLine()) != null) {
-                                System.out.println(fromDataSocket);
-                            }
-                            handleServerResponse();
+    /**
+     * Handles the compress command: "compress on" (the default) fetches whole files and listings in MODE Z
+     * when the server offers it, decompressing them as they arrive; "compress off" keeps to MODE S.
+     * Resumed and ranged downloads and uploads always use MODE S.
+     * @param args
+     */
+    private static void handleCompress(String[] args){
+        if (args.length == 2 && (args[1].equals("on") || args[1].equals("off"))) {
+            session().compression = args[1].equals("on");
+            System.out.println("Compression " + args[1] + ".");
+        } else {
+            // incorrect number of arguments
+            printError("0x002 Incorrect number of arguments.");
+        }
+    }
 
-                            // close the connection
-                            dataSocket.close();
-                            dataSocketIn.close();
-                        }
-                        catch (IOException e) {
-                            System.out.println("0x3A7 Data transfer connection I/O error, closing data connection.");
-                            dataSocket.close();
-                        }
-                        catch (Exception exception){
-                            System.out.println("0x3A2 Data transfer connection to " +
-                                    ip + " on port " + hostNum + " failed to open.");
-                            dataSocket.close();
-                        }
-                    } else {
-                        System.out.println("<-- " + fromServer);
+    /**
+     * Handles the throttle command: "throttle" prints the bandwidth limits, "throttle global rate" limits all
+     * transfers together, "throttle transfer rate" limits each one, and "throttle interactive weight" or
+     * "throttle bulk weight" sets how the global rate is shared between get/put on this connection and the
+     * pget, mirror and sync workers. Rates are bytes per second with an optional K or M suffix, or off.
+     * Changes apply to running transfers at once. The limits are shared by the whole process, so scripts run
+     * together with -j may print them but not change them.
+     * @param args
+     */
+    private static void handleThrottle(String[] args){
+        if (args.length == 3) {
+            Script script = scripts.get();
+            if (script != null && script.transcript != null) {
+                System.out.println("Bandwidth limits cannot be changed by scripts run together with -j.");
+                printError("0x001 Invalid commad.");
+                return;
+            }
+            BandwidthScheduler bandwidth = FtpSession.bandwidth;
+            long value = parseRate(args[2]);
+            if (value < 0) {
+                printError("0x002 Incorrect number of arguments.");
+                return;
+            }
+            switch (args[1]) {
+                case "global":
+                    bandwidth.setGlobalRate(value);
+                    break;
+                case "transfer":
+                    bandwidth.setTransferRate(value);
+                    break;
+                case BandwidthScheduler.INTERACTIVE:
+                case BandwidthScheduler.BULK:
+                    if (value < 1 || value > Integer.MAX_VALUE || !args[2].matches("[0-9]+")) {
+                        printError("0x002 Incorrect number of arguments.");
                         return;
                     }
+                    bandwidth.setWeight(args[1], (int) value);
+                    break;
+                default:
+                    printError("0x002 Incorrect number of arguments.");
+                    return;
+            }
+        } else if (args.length != 1) { // incorrect number of arguments
+            printError("0x002 Incorrect number of arguments.");
+            return;
+        }
+        System.out.println(FtpSession.bandwidth);
+    }
+
+    // Parses a rate such as 500K, 10M, 4096 or off (0); returns -1 if it is not one
+    private static long parseRate(String rate){
+        if (rate.equals("off")) return 0;
+        long unit = 1;
+        if (rate.endsWith("K") || rate.endsWith("k")) unit = 1024;
+        else if (rate.endsWith("M") || rate.endsWith("m")) unit = 1024 * 1024;
+        try {
+            long value = Long.parseLong(unit == 1 ? rate : rate.substring(0, rate.length() - 1));
+            return value < 0 ? -1 : value * unit;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Handles the tune command: "tune" prints the socket settings, "tune name value" changes one of them for
+     * the data connections opened from now on: nodelay on|off for control connections, rcvbuf and sndbuf as
+     * a byte count, auto (sized from the bandwidth-delay product) or system, link as the assumed speed in
+     * bytes per second, chunk as the first read size and adaptive on|off for growing reads.
+     * @param args
+     */
+    private static void handleTune(String[] args){
+        if (args.length == 3) {
+            SocketTuning tuning = session().tuning.with(args[1], args[2]);
+            if (tuning == null) {
+                printError("0x002 Incorrect number of arguments.");
+                return;
+            }
+            session().tuning = tuning;
+        } else if (args.length != 1) { // incorrect number of arguments
+            printError("0x002 Incorrect number of arguments.");
+            return;
+        }
+        System.out.println(session().tuning);
+    }
+
+    /**
+     * Handles the retry command: "retry" prints how lost connections are retried, and "retry attempts n",
+     * "retry delay ms" or "retry maxdelay ms" changes it. Waits between tries start at delay and double up to
+     * maxdelay, with random jitter; "retry attempts 1" turns retrying off.
+     * @param args
+     */
+    private static void handleRetry(String[] args){
+        if (args.length == 3) {
+            RetryPolicy retry = session().retry.with(args[1], args[2]);
+            if (retry == null) {
+                printError("0x002 Incorrect number of arguments.");
+                return;
+            }
+            session().retry = retry;
+        } else if (args.length != 1) { // incorrect number of arguments
+            printError("0x002 Incorrect number of arguments.");
+            return;
+        }
+        System.out.println(session().retry);
+    }
+
+    /**
+     * Handles the dir command: retrieves and prints the entries of the current working directory. The listing
+     * comes from MLSD when the server supports it and from LIST otherwise, and a recent listing of the same
+     * directory is reused without going back to the server.
+     * With a name pattern or filters, the listing is streamed instead: each entry is printed as soon as it
+     * arrives if it passes, which suits directories too large to wait for.
+     * Usage: dir [pattern] [-larger bytes] [-smaller bytes] [-newer time] [-older time], times as
+     * YYYYMMDD or YYYYMMDDHHMMSS in UTC
+     * @param args
+     */
+    private static void handleDir(String[] args){
+        if (args.length > 1) {
+            Predicate<FtpEntry> filter = listingFilter(args);
+            if (filter == null) {
+                printError("0x002 Incorrect number of arguments.");
+                return;
+            }
+            try {
+                System.out.println("--> " + (session().hasFeature("MLST") ? "MLSD" : "LIST"));
+                AtomicLong matched = new AtomicLong();
+                try (Stream<FtpEntry> entries = session().stream(null)) {
+                    entries.filter(filter).forEachOrdered(entry -> {
+                        System.out.println(entry);
+                        matched.incrementAndGet();
+                    });
+                }
+                System.out.println(matched + " matching entries.");
+            } catch (IOException | UncheckedIOException e) {
+                printError("0x3A7 Data transfer connection I/O error, closing data connection.");
+            }
+        } else {
+            try {
+                String directory = session().pwd();
+                boolean cached = directory != null && session().listings.get(directory) != null;
+                if (cached) {
+                    System.out.println("(cached listing of " + directory + ")");
+                } else {
+                    System.out.println("--> " + (session().hasFeature("MLST") ? "MLSD" : "LIST"));
+                }
+                for (FtpEntry entry : session().list(directory)) {
+                    System.out.println(entry);
                 }
             } catch (IOException e) {
-                System.out.println("0xFFFD Control connection I/O error, closing control connection.");
-                System.exit(0);
+                printError("0x3A7 Data transfer connection I/O error, closing data connection.");
             }
-        } else { // incorrect number of arguments
-            System.out.println("0x002 Incorrect number of arguments.");
+        }
+    }
+
+    /**
+     * Builds the filter of a dir command from its arguments after the command name.
+     * @return the filter, or null if the arguments are not valid
+     */
+    private static Predicate<FtpEntry> listingFilter(String[] args){
+        Predicate<FtpEntry> filter = entry -> true;
+        for (int i = 1; i < args.length; i++) {
+            if (!args[i].startsWith("-")) {
+                if (i != 1) return null; // the pattern comes first
+                filter = filter.and(FtpEntry.named(args[i]));
+                continue;
+            }
+            if (i + 1 == args.length) return null;
+            String value = args[++i];
+            long size = parseSize(value);
+            long time = FtpSession.parseModified(value.length() == 8 ? value + "000000" : value);
+            switch (args[i - 1]) {
+                case "-larger":
+                    if (size < 0) return null;
+                    filter = filter.and(FtpEntry.sized(size + 1, Long.MAX_VALUE));
+                    break;
+                case "-smaller":
+                    if (size < 0) return null;
+                    filter = filter.and(FtpEntry.sized(0, size - 1));
+                    break;
+                case "-newer":
+                    if (time < 0) return null;
+                    filter = filter.and(FtpEntry.modified(time + 1, Long.MAX_VALUE));
+                    break;
+                case "-older":
+                    if (time < 0) return null;
+                    filter = filter.and(FtpEntry.modified(0, time - 1));
+                    break;
+                default:
+                    return null;
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * Handles the metrics command: prints the command, data connection and transfer timings gathered so far
+     * in Prometheus text format, or as JSON with "metrics json". A file name as the last argument writes the
+     * dump there instead.
+     * @param args
+     */
+    private static void handleMetrics(String[] args){
+        boolean json = args.length > 1 && args[1].equals("json");
+        int fileArg = json ? 2 : 1;
+        if (args.length > fileArg + 1) { // incorrect number of arguments
+            printError("0x002 Incorrect number of arguments.");
+            return;
+        }
+        String dump = json ? metrics.toJson() : metrics.toPrometheus();
+        if (args.length == fileArg) {
+            System.out.println(dump.stripTrailing());
+            return;
+        }
+        try (Writer out = new FileWriter(args[fileArg])) {
+            out.write(dump);
+        } catch (IOException e) {
+            printError("0x38E Access to local file " + args[fileArg] + " denied.");
         }
     }
 
     /**
      * Handles the get command: Establishes a data connection and retrieves the file indicated by second argument,
      * saving the file in a file of the same name on the local machine.
-     * It sends PASV and RETR commands to the actual ftp server.
+     * It sends PASV and RETR commands to the actual ftp server. The file is streamed to disk as it arrives through
+     * a reusable direct buffer, so memory use does not depend on the file size.
+     * If an earlier get of the same file was interrupted and its checkpoint still matches the remote file,
+     * the download is resumed from the end of the partial file.
      * @param args command line arguments, 2nd argument corresponds to the file name
      */
     private static void handleGet(String[] args){
         if (args.length == 2) {
-            String fileName = args[1]; // file name
-            String fromServer;
-            String ip;
-            int hostNum;
-            Socket dataSocket = new Socket(); // socket for the data connection
-            int fileSize = 0;
-            // According to the spec, the files transferred by the RETR command are to be in binary.
-            // Request the file in binary by sending a TYPE request; server accepts it with 200
+            retrieveFile(args[1], false);
+        }
+        else { // incorrect number of arguments
+            printError("0x002 Incorrect number of arguments.");
+        }
+    }
+
+    /**
+     * Handles the reget command: like get, but always continues from the end of the local file with REST,
+     * even when no checkpoint was recorded. A checkpoint that no longer matches the remote file still
+     * causes the partial file to be discarded.
+     * @param args command line arguments, 2nd argument corresponds to the file name
+     */
+    private static void handleReget(String[] args){
+        if (args.length == 2) {
+            retrieveFile(args[1], true);
+        }
+        else { // incorrect number of arguments
+            printError("0x002 Incorrect number of arguments.");
+        }
+    }
+
+    /**
+     * Retrieves fileName into a local file of the same name, resuming a partial download when possible.
+     * A checkpoint sidecar holding the remote size and MDTM is written while the transfer is in progress and
+     * removed once the file is complete, so an interrupted transfer leaves both the partial file and the
+     * information needed to tell whether it is still valid.
+     * With verify on, the bytes are checksummed as they are written and compared with a sidecar next to the
+     * local file or with the server's checksum, and a file that does not match is fetched again.
+     * A transfer cut short by a lost connection or a transient error is resumed from where it stopped, after
+     * the retry policy's backoff, until the policy's attempts are used up.
+     * @param fileName remote (and local) file name
+     * @param force    resume from the local file even without a checkpoint
+     */
+    private static void retrieveFile(String fileName, boolean force){
+        retrieveFile(fileName, force, 1, 1);
+    }
+
+    /**
+     * @param attempt fetches of the file so far because of checksum mismatches, this one included
+     * @param tries   tries of this fetch so far because of connection failures, this one included
+     */
+    private static void retrieveFile(String fileName, boolean force, int attempt, int tries){
+        if (!fetchFile(fileName, force, attempt, tries)) return;
+        try {
+            session().retry.pause(tries);
+        } catch (InterruptedIOException e) {
+            return;
+        }
+        System.out.println("Resuming " + fileName + ".");
+        retrieveFile(fileName, false, attempt, tries + 1);
+    }
 
+    // Does one try of retrieveFile and returns true if the download should be resumed with another one
+    private static boolean fetchFile(String fileName, boolean force, int attempt, int tries){
+        String fromServer;
+        boolean refetch = false;
+        boolean resume = false;
+        try {
+            // asked for before PASV so a slow checksum cannot time out the passive listener
+            String expected = session().verify ? expectedChecksum(new File(fileName), fileName) : null;
+            TransferChecksum checksum = TransferChecksum.forValue(expected);
 
 
+            // According to the spec, the files transferred by the RETR command are to be in binary.
+            // Request the file in binary by sending a TYPE request; server accepts it with 200.
+            // TYPE, SIZE, MDTM and EPSV/PASV do not depend on each other, so in pipelined mode they share one flush.
+            String passive = session().passiveCommand();
             System.out.println("--> TYPE I");
-            clientOut.print("TYPE I\r\n");
-            clientOut.flush();
+            System.out.println("--> " + passive);
+            String[] replies = session().commands("TYPE I", "SIZE " + fileName, "MDTM " + fileName, passive);
+            System.out.println("<-- " + replies[0]);
+            System.out.println("<-- " + replies[3]);
+            if (!replies[0].startsWith("200")) return false;
+            session().binary = true;
 
-            try {
-                if ((fromServer = ftpIn.readLine()) != null) {
-                    System.out.println(fromServer);
-                    if (fromServer.startsWith("200")) { // now it is in binary continue
-                        // in binary mode
-                        // get the size to allocate byte array for the file
-
-                        // I AM NOT PRINTING THE RESPONSE FOR THE SIZE COMMAND BECAUSE ACCORDING TO THE SPEC
-                        // IT IS NOT ONE OF THE REQUIRED COMMANDS(PASV, RETR) FOR THIS COMMAND
-                        clientOut.print("SIZE " + fileName + "\r\n");
-                        clientOut.flush();
-
-                        fromServer = ftpIn.readLine();
-
-                        // get the file size
-                        if (fromServer.startsWith("213")) {
-                            String size = fromServer.split(" ")[1];
-                            fileSize = Integer.parseInt(size);
-                        } else {
-                            System.out.println("<-- " + fromServer);
-                            return;
-                        }
+            // I AM NOT PRINTING THE RESPONSE FOR THE SIZE COMMAND BECAUSE ACCORDING TO THE SPEC
+            // IT IS NOT ONE OF THE REQUIRED COMMANDS(PASV, RETR) FOR THIS COMMAND
+            // The size is only used to check the transfer, so a server without SIZE is fine.
+            long fileSize = parseSize(FtpSession.parseValue(replies[1]));  // -1 when the server does not support SIZE
+            String modified = FtpSession.parseValue(replies[2]);           // null when the server does not support MDTM
 
-                        // Request PASV
-                        System.out.println("--> PASV");
-                        clientOut.print("PASV" + "\r\n");
-                        clientOut.flush();
+            SocketChannel dataChannel = openDataConnection(passive, replies[3]);
+            if (dataChannel == null) return false;
 
-                        if ((fromServer = ftpIn.readLine()) != null) {
-                            System.out.println("<-- " + fromServer);
-                            if (fromServer.split(" ")[0].equals("227")) { // entering passive mode; parse the ip and host
-                                String ipAndHost = fromServer.split("\\(")[1];
-                                String[] arguments = ipAndHost.split(",");
-                                // the last number will have additional ")" so split that as well
-                                arguments[5] = arguments[5].split("\\)")[0];
-                                // get the ip and host to make the connection
-                                ip = arguments[0] + "." + arguments[1] + "." + arguments[2] + "." + arguments[3];
-                                hostNum = (Integer.parseInt(arguments[4]) * 256) + Integer.parseInt(arguments[5]);
-
-                                // TODO ANOTHER METHOD FOR THIS MAYBE? -- THIS IS TOO LONG
-                                try {
-                                    dataSocket.connect(new InetSocketAddress(ip, hostNum), 10000);
-                                    BufferedInputStream dataSocketIn = new BufferedInputStream(dataSocket.getInputStream());
-
-                                    // send the list command
-                                    System.out.println("--> RETR " + fileName);
-                                    clientOut.print("RETR " + fileName + "\r\n");
-                                    clientOut.flush();
-
-                                    if ((fromServer = ftpIn.readLine()) != null) {
-                                        if (fromServer.startsWith("125")) { // awesomeee:))))
-                                            System.out.println("<-- " + fromServer);
-
-                                            // create resources to read file in bytes
-                                            byte[] bytes = new byte[fileSize];
-                                            int bytesRead = 0;      // how many bytes in each read
-                                            int offset = 0;
-                                            
-                                            
-                                                // get the bytes
-                                                while ((bytesRead = dataSocketIn.read(bytes, offset, bytes.length-offset)) != -1) {
-                                                    offset += bytesRead;
-                                                    if (offset == bytes.length) break;
-                                                }
-                                                try{
-                                                    // System.out.println("heyyyy");
-                                                    File file = new File(fileName);
-                                                    FileOutputStream fileOut = new FileOutputStream(file);
-                                                    fileOut.write(bytes);
-                                                    fileOut.close();
-                                                }
-                                                catch(Exception er) {
-                                                    System.out.println("0x38E Access to local file XXX denied.");
-                                                    return;
-                                                }
-                                        }
-                                        else { // request is refused
-                                            System.out.println("<-- " + fromServer);
-                                            dataSocket.close();
-                                            dataSocketIn.close();
-                                            return;
-                                        }
-                                    }
-                                    // handle the response
-                                    handleServerResponse();
-
-                                    // close the connection
-                                    dataSocket.close();
-                                    dataSocketIn.close();
-                                } catch (IOException e) {
-                                    System.out.println("0x3A7 Data transfer connection I/O error, closing data connection.");
-                                    dataSocket.close();
-                                } catch (Exception exception) {
-                                    System.out.println("0x3A2 Data transfer connection to " +
-                                            ip + " on port " + hostNum + " failed to open. " + exception.getMessage());
-                                    dataSocket.close();
-                                }
-                            } else {
-                                System.out.println("<-- " + fromServer);
-                                return;
-                            }
-                        }
-                    } else {
-                        System.out.println("<-- " + fromServer);
-                        return;
+            File localFile = new File(fileName);
+            long offset = resumeOffset(localFile, fileSize, modified, force);
+            long received = 0;
+            ReadableByteChannel dataIn = dataChannel;
+            try {
+                // a whole file can come compressed, a resumed one has to come as it is
+                String mode = session().transferMode(offset == 0);
+                if (mode != null) {
+                    System.out.println("--> " + mode);
+                    System.out.println("<-- " + session().lastReply.last());
+                }
+                dataIn = session().dataInput(dataChannel);
+
+                // REST has to come right before RETR
+                if (offset > 0) {
+                    System.out.println("--> REST " + offset);
+                    session().send("REST " + offset);
+                    if ((fromServer = handleServerResponse()) == null) {
+                        return tries < session().retry.attempts; // reconnected
                     }
+                    if (!fromServer.startsWith("350")) offset = 0; // server cannot restart, fetch it all again
+                    else session().metrics.retry("resume");
+                }
+
+                System.out.println("--> RETR " + fileName);
+                long requested = System.nanoTime();
+                session().send("RETR " + fileName);
+
+                if ((fromServer = handleServerResponse()) == null) {
+                    return tries < session().retry.attempts; // reconnected
+                }
+                // 125 (data connection already open) and 150 (about to open) both mean the file is coming
+                if (!fromServer.startsWith("125") && !fromServer.startsWith("150")) return false;
+
+                FileChannel fileOut;
+                try {
+                    writeCheckpoint(localFile, fileSize, modified);
+                    fileOut = FileChannel.open(localFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                    fileOut.truncate(offset);
+                    // the part fetched earlier is the only part that has to be read back
+                    if (checksum != null && offset > 0) checksum.update(localFile, offset, transferBuffers.get());
+                } catch (Exception er) {
+                    printError("0x38E Access to local file " + fileName + " denied.");
+                    return false;
+                }
+
+                try {
+                    received = transferToFile(dataIn, fileOut, offset, checksum);
+                } finally {
+                    fileOut.close();
+                }
+                // handle the transfer complete response
+                fromServer = handleServerResponse();
+                if (fromServer == null || !FtpReply.isCompletion(fromServer)
+                        || (fileSize >= 0 && offset + received != fileSize)) {
+                    printError("0x3A7 Data transfer connection I/O error, closing data connection.");
+                    // null means the control connection was lost and has been opened again
+                    resume = (fromServer == null || !fromServer.startsWith("5")) && tries < session().retry.attempts;
+                    partialFileKept(offset + received, resume);
+                } else {
+                    session().transferred("get", fileName, received, requested);
+                    checkpointFile(localFile).delete();
+                    if (checksum != null) refetch = !verified(fileName, checksum.value(), expected, attempt);
                 }
             } catch (IOException e) {
-                System.out.println("0xFFFD Control connection I/O error, closing control connection.");
+                printError("0x3A7 Data transfer connection I/O error, closing data connection.");
+                resume = session().retry.retries(e, tries);
+                partialFileKept(offset + received, resume);
+                // the server still owes the reply to RETR, which comes once it sees the data connection close
+                dataIn.close();
+                dataChannel.close();
+                handleServerResponse();
+            } finally {
+                dataIn.close();
+                dataChannel.close();
             }
+        } catch (IOException e) {
+            reconnect();
+            resume = tries < session().retry.attempts;
         }
-        else { // incorrect number of arguments
-            System.out.println("0x002 Incorrect number of arguments.");
+        if (refetch) {
+            session().metrics.retry("checksum");
+            new File(fileName).delete(); // a resumed file may have gone wrong anywhere, start over
+            retrieveFile(fileName, false, attempt + 1, tries);
         }
+        return resume;
+    }
+
+    // Tells where a download stopped and whether it goes on by itself or needs a reget
+    private static void partialFileKept(long length, boolean resuming){
+        System.out.println("Partial file kept at " + length + " bytes, "
+                + (resuming ? "resuming." : "use reget to resume."));
     }
 
-    
     /**
-     * Gets the user command from the command line and calls appropriate command handler
-     *
+     * Returns the checksum a download should have: from a sidecar next to the local file, or else from the
+     * server when FEAT lists a checksum command.
+     * @return the algorithm and hex digest, or null if there is nothing to check against
+     * @throws IOException if the control connection fails
      */
-    private static void handleCommand(){
-        String command;
-        String fromUser; // user input from the command line
-        int argc;        // user input argument count
-        String cmds[]; // command as a string array
+    private static String expectedChecksum(File localFile, String remotePath) throws IOException {
+        String expected = TransferChecksum.sidecar(localFile);
+        if (expected == null && session().advertisesChecksum()) expected = session().checksum(remotePath);
+        return expected;
+    }
+
+    /**
+     * Compares the checksum of a finished download with the expected one and reports the outcome.
+     * @return true if they match or if the file should not be fetched again anyway
+     */
+    private static boolean verified(String fileName, String actual, String expected, int attempt){
+        if (TransferChecksum.matches(actual, expected)) {
+            String algorithm = actual.substring(0, actual.indexOf(':'));
+            System.out.println("Checksum " + algorithm + " of " + fileName + " verified.");
+            return true;
+        }
+        if (attempt < MAX_VERIFY_ATTEMPTS) {
+            printError("0x3B1 Checksum of " + fileName + " does not match, fetching it again.");
+            return false;
+        }
+        printError("0x3B1 Checksum of " + fileName + " does not match after " + attempt + " attempts.");
+        return true;
+    }
 
+    // Returns the size in a SIZE reply, or -1 if there is none
+    private static long parseSize(String size){
+        if (size == null) return -1;
         try {
-            fromUser = clientIn.readLine();
-            cmds = fromUser.split(" ");
-            command = cmds[0];
-            argc = cmds.length;
-
-            switch (command) {
-                // handle login
-                case "user":
-                    handleUser(cmds);
-                    break;
-                case "pw":
-                    handlePass(cmds);
-                    break;
-                case "quit":
-                    handleQuit(cmds);
-                    break;
-                case "get":
-                    handleGet(cmds);
-                    break;
-                case "features":
-                    handleFeatures(cmds);
-                    break;
-                case "cd":
-                    handleCd(cmds);
-                    break;
-                case "dir":
-                    handleDir(cmds);
-                    break;
-                case "":
-                    break;
-                case " ":
-                    break;
-                case "#":
-                    break;
-                default:
-                    System.out.println("0x001 Invalid commad.");
-                    break;
-            }
-        } catch (IOException e){
-            System.out.println("0xFFFE Input error while reading commands, terminating.");
-            System.exit(0);
+            return Long.parseLong(size);
+        } catch (NumberFormatException e) {
+            return -1;
         }
+    }
 
+    // Returns the checkpoint sidecar of a local download target
+    private static File checkpointFile(File localFile){
+        return new File(localFile.getPath() + CHECKPOINT_SUFFIX);
     }
 
-    
-    public static void main(String [] args)
-    {
-        // Get command line arguments and connected to FTP
-        // If the arguments are invalid or there aren't enough of them
-        // then exit.
-        
-        if (args.length > ARG_CNT || args.length < ARG_NO_PORT) {
-            System.out.print("Usage: cmd ServerAddress ServerPort\n");
-            return;
+    /**
+     * Records the remote size and modification time a partial download belongs to.
+     */
+    private static void writeCheckpoint(File localFile, long fileSize, String modified) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(checkpointFile(localFile)))) {
+            out.println(fileSize);
+            out.println(modified == null ? "" : modified);
         }
+    }
 
+    /**
+     * Decides where a download of localFile should start. A partial file is only continued when its checkpoint
+     * matches the remote size and MDTM (or, with force, when there is no checkpoint at all); a stale partial
+     * file and its checkpoint are discarded.
+     * @return the byte offset to send with REST, or 0 to fetch the whole file
+     */
+    private static long resumeOffset(File localFile, long fileSize, String modified, boolean force){
+        File checkpoint = checkpointFile(localFile);
+        long length = localFile.length();
+        if (!localFile.isFile() || length == 0) return 0;
 
-        // Get the server address and port; default port is 21 if no port is provided
-        byte cmdString[] = new byte[MAX_LEN];
-        String serverAddress = args[0];
-        int serverPort;
-        if (args.length == 1){
-            serverPort = 21;
-        }
-        else {
-            try {
-                serverPort = Integer.parseInt(args[1]);
-            } catch (NumberFormatException e) {
-                System.out.print("Usage: cmd ServerAddress ServerPort\n");
-                return;
+        if (checkpoint.isFile()) {
+            try (BufferedReader in = new BufferedReader(new FileReader(checkpoint))) {
+                long savedSize = parseSize(in.readLine());
+                String savedModified = in.readLine();
+                if (savedModified == null) savedModified = "";
+                if (savedSize != fileSize || !savedModified.equals(modified == null ? "" : modified)) {
+                    System.out.println("Remote file changed since the partial download, starting over.");
+                    checkpoint.delete();
+                    return 0;
+                }
+            } catch (IOException e) {
+                return 0;
             }
+        } else if (!force) {
+            return 0;
         }
 
-        // loop until quit or fatal error
+        if (fileSize >= 0 && length > fileSize) return 0;
+        return length;
+    }
+
+    /**
+     * Opens a blocking data connection channel to the address in the reply to a passive mode command. If the
+     * server refused EPSV, PASV is sent and the server is remembered as one that needs it.
+     * @return the connected channel, or null if passive mode was refused or the connection could not be opened
+     */
+    private static SocketChannel openDataConnection(String passive, String fromServer){
+        if (session().passiveRefused(passive, fromServer)) {
+            System.out.println("--> PASV");
+            session().send("PASV");
+            if ((fromServer = handleServerResponse()) == null) return null;
+        }
+        InetSocketAddress address;
         try {
-            for (int len = 1; len > 0;) {
+            address = session().passiveAddress(fromServer);
+        } catch (IOException e) {
+            return null;
+        }
+        try {
+            return session().connectData(address);
+        } catch (Exception exception) {
+            printError("0x3A2 Data transfer connection to " +
+                    address.getHostString() + " on port " + address.getPort() + " failed to open.");
+            return null;
+        }
+    }
+
+    /**
+     * Copies everything from the data connection into the file starting at position, through the shared
+     * direct transfer buffer, until the server closes the connection. The bytes are added to checksum too
+     * when it is not null.
+     * @return the number of bytes written to the file
+     */
+    private static long transferToFile(ReadableByteChannel in, FileChannel out, long position,
+                                       TransferChecksum checksum) throws IOException {
+        return session().transfer(in, out, position, -1, transferBuffers.get(), null, checksum);
+    }
+
+    /**
+     * Handles the put and append commands: uploads the local file named by the second argument with STOR, or
+     * with APPE for append, under the remote name given as the third argument or the same name.
+     * Usage: put local [remote], append local [remote]
+     * @param args   command line arguments
+     * @param append true to add to the end of the remote file instead of replacing it
+     */
+    private static void handlePut(String[] args, boolean append){
+        if (args.length == 2 || args.length == 3) {
+            String remoteName = args.length == 3 ? args[2] : new File(args[1]).getName();
+            storeFile(new File(args[1]), remoteName, append);
+        } else { // incorrect number of arguments
+            printError("0x002 Incorrect number of arguments.");
+        }
+    }
+
+    /**
+     * Handles the mput command: uploads every local file named on the command line, one after the other, to
+     * the current remote directory. Names may be glob patterns such as *.csv, matched in their own directory.
+     * Usage: mput file...
+     * @param args command line arguments
+     */
+    private static void handleMput(String[] args){
+        if (args.length < 2) {
+            printError("0x002 Incorrect number of arguments.");
+            return;
+        }
+        for (int i = 1; i < args.length; i++) {
+            for (File file : expandGlob(args[i])) {
+                storeFile(file, file.getName(), false);
+            }
+        }
+    }
+
+    // Returns the local files matching a name that may contain glob characters in its last part
+    private static List<File> expandGlob(String pattern){
+        File file = new File(pattern);
+        List<File> files = new ArrayList<>();
+        if (pattern.indexOf('*') < 0 && pattern.indexOf('?') < 0 && pattern.indexOf('[') < 0) {
+            files.add(file);
+            return files;
+        }
+        File parent = file.getParentFile() == null ? new File(".") : file.getParentFile();
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + file.getName());
+        File[] candidates = parent.listFiles();
+        if (candidates != null) {
+            Arrays.sort(candidates);
+            for (File candidate : candidates) {
+                if (candidate.isFile() && matcher.matches(Paths.get(candidate.getName()))) files.add(candidate);
+            }
+        }
+        if (files.isEmpty()) printError("0x38E Access to local file " + pattern + " denied.");
+        return files;
+    }
+
+    // Uploads one file on the interactive session and prints the outcome
+    private static void storeFile(File localFile, String remoteName, boolean append){
+        if (!localFile.isFile() || !localFile.canRead()) {
+            printError("0x38E Access to local file " + localFile + " denied.");
+            return;
+        }
+        System.out.println("--> " + (append ? "APPE " : "STOR ") + remoteName);
+        try {
+            long sent = session().store(localFile, remoteName, append);
+            System.out.println("<-- " + session().lastReply);
+            System.out.println(sent + " bytes sent.");
+        } catch (FileNotFoundException e) {
+            printError("0x38E Access to local file " + localFile + " denied.");
+        } catch (IOException e) {
+            printError("0x3A7 Data transfer connection I/O error, closing data connection.");
+            if (session().lastReply != null) System.out.println("<-- " + session().lastReply);
+        }
+    }
+
+    /**
+     * Handles the pget command: retrieves one file over several control connections at once. The file is
+     * preallocated locally and split into byte ranges; each range is fetched on its own connection with
+     * REST and RETR and written at its offset, while a combined progress line is printed.
+     * Usage: pget file [-n connections]
+     * @param args command line arguments, 2nd argument corresponds to the file name
+     */
+    private static void handlePget(String[] args){
+        int segments = DEFAULT_SEGMENTS;
+        if (args.length == 4 && args[2].equals("-n")) {
+            try {
+                segments = Integer.parseInt(args[3]);
+            } catch (NumberFormatException e) {
+                segments = 0;
+            }
+            if (segments < 1 || segments > MAX_SEGMENTS) {
+                printError("0x002 Incorrect number of arguments.");
+                return;
+            }
+        } else if (args.length != 2) {
+            printError("0x002 Incorrect number of arguments.");
+            return;
+        }
+        String fileName = args[1];
+
+        try {
+            System.out.println("--> TYPE I");
+            String[] replies = session().commands("TYPE I", "SIZE " + fileName);
+            System.out.println("<-- " + replies[0]);
+            if (!replies[0].startsWith("200")) return;
+            session().binary = true;
+
+            long fileSize = parseSize(FtpSession.parseValue(replies[1]));
+            if (fileSize < 0) { // no way to split the file without its size
+                System.out.println("Server did not report a size for " + fileName + ", using a single connection.");
+                retrieveFile(fileName, false);
+                return;
+            }
+
+            // the extra connections have to start in the same directory as this one
+            String directory = session().pwd();
+
+            File localFile = new File(fileName);
+            // segments are written out of order, so they can only be verified one range at a time
+            boolean verify = session().verify;
+            boolean ranged = verify && session().hasFeature("HASH") && session().hasFeature("RANG");
+            if (verify && !ranged && (TransferChecksum.sidecar(localFile) != null || session().advertisesChecksum())) {
+                System.out.println("The server cannot checksum byte ranges, " + fileName + " will not be verified.");
+            }
+            segments = (int) Math.max(1, Math.min(segments, fileSize / TRANSFER_BUF_SIZE));
+            long segmentSize = fileSize / segments;
+
+            try (RandomAccessFile raf = new RandomAccessFile(localFile, "rw")) {
+                raf.setLength(fileSize);
+                FileChannel fileOut = raf.getChannel();
+                AtomicLong progress = new AtomicLong();
+                // the extra connections start in the login directory, so relative names are made absolute
+                String path = directory == null || fileName.startsWith("/") ? fileName : joinPath(directory, fileName);
+                FtpEngine.Endpoint endpoint = endpoint();
+                List<CompletableFuture<Long>> results = new ArrayList<>();
+                for (int i = 0; i < segments; i++) {
+                    long start = i * segmentSize;
+                    long length = (i == segments - 1) ? fileSize - start : segmentSize;
+                    results.add(ranged ? retrieveVerifiedRange(endpoint, path, start, length, fileOut, progress)
+                            : engine.retrieve(endpoint, path, start, length, fileOut, progress));
+                }
+                CompletableFuture<Void> all = CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]));
+
+                long started = System.nanoTime();
+                while (true) {
+                    try {
+                        all.get(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+                        break;
+                    } catch (TimeoutException e) {
+                        printProgress(progress.get(), fileSize, segments, started);
+                    } catch (ExecutionException e) {
+                        break; // counted below, once every segment has finished
+                    }
+                }
+                printProgress(progress.get(), fileSize, segments, started);
+                System.out.println();
+
+                int failed = 0;
+                for (CompletableFuture<Long> result : results) {
+                    if (result.isCompletedExceptionally()) failed++;
+                }
+                if (failed > 0) {
+                    printError("0x3A7 Data transfer connection I/O error, closing data connection.");
+                    System.out.println(failed + " of " + segments + " segments of " + fileName + " failed.");
+                }
+            } catch (InterruptedException e) {
+                printError("0x3A7 Data transfer connection I/O error, closing data connection.");
+            } catch (IOException e) {
+                printError("0x38E Access to local file " + fileName + " denied.");
+            }
+        } catch (IOException e) {
+            reconnect();
+        }
+    }
+
+    /**
+     * Fetches one pget range on a pooled session, checksumming it as it is written and comparing it with the
+     * server's checksum of the same range. A range that does not match is fetched again.
+     * @return a future completed with the number of bytes received
+     */
+    private static CompletableFuture<Long> retrieveVerifiedRange(FtpEngine.Endpoint endpoint, String path, long start,
+                                                                 long length, FileChannel fileOut, AtomicLong progress){
+        return submit(endpoint, (control, buffer) -> {
+            String expected = control.checksum(path, start, length);
+            for (int attempt = 1; ; attempt++) {
+                TransferChecksum checksum = TransferChecksum.forValue(expected);
+                long received;
+                try {
+                    received = control.retrieve(path, start, length, fileOut, buffer, progress, checksum);
+                } catch (IOException e) {
+                    // the engine may run the task again, which fetches the whole range with a new checksum
+                    progress.addAndGet(-control.partialBytes);
+                    throw e;
+                }
+                if (checksum == null || TransferChecksum.matches(checksum.value(), expected)) return received;
+                String range = "bytes " + start + "-" + (start + length - 1) + " of " + path;
+                if (attempt == MAX_VERIFY_ATTEMPTS) {
+                    printError("0x3B1 Checksum of " + range + " does not match after " + attempt + " attempts.");
+                    throw new IOException("checksum mismatch in " + range);
+                }
+                printError("0x3B1 Checksum of " + range + " does not match, fetching them again.");
+                progress.addAndGet(-received);
+                control.metrics.retry("checksum");
+            }
+        });
+    }
+
+    // Prints the combined progress of all pget segments on one line
+    private static void printProgress(long done, long total, int segments, long started){
+        double seconds = Math.max(1e-3, (System.nanoTime() - started) / 1e9);
+        long percent = total == 0 ? 100 : done * 100 / total;
+        System.out.print("\r" + percent + "% " + done + "/" + total + " bytes over " + segments
+                + " connections, " + (long) (done / seconds / 1024) + " KB/s");
+        System.out.flush();
+    }
+
+    // Returns the server, login and settings of this thread's session, for the engine's own sessions
+    private static FtpEngine.Endpoint endpoint(){
+        return new FtpEngine.Endpoint(serverAddress, serverPort, session().user, session().password, session());
+    }
+
+    /**
+     * Runs a task on the engine for the script running on this thread, if there is one. The task and the
+     * callbacks of the returned future run as that script, so what they print goes to its transcript.
+     * @return a future completed with the task's result, or exceptionally with its IOException
+     */
+    private static <T> CompletableFuture<T> submit(FtpEngine.Endpoint endpoint, FtpEngine.Task<T> task){
+        Script script = scripts.get();
+        if (script == null) return engine.submit(endpoint, task);
+        CompletableFuture<T> result = new CompletableFuture<>();
+        engine.submit(endpoint, (session, buffer) -> {
+            Script previous = scripts.get();
+            scripts.set(script);
+            try {
+                return task.run(session, buffer);
+            } finally {
+                scripts.set(previous);
+            }
+        }).whenComplete((value, failure) -> {
+            // may run on the script's own thread when the task is already done, so restore, don't remove
+            Script previous = scripts.get();
+            scripts.set(script);
+            try {
+                if (failure != null) result.completeExceptionally(failure);
+                else result.complete(value);
+            } finally {
+                scripts.set(previous);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Handles the mirror command: copies the remote directory tree into the local directory. The tree is
+     * walked on this connection with CWD and LIST while the engine fetches the files concurrently, at most
+     * workers at a time, each on its own pooled control connection. Files whose local copy already has the remote size
+     * and modification time are skipped, and downloaded files get the remote modification time.
+     * Usage: mirror remote local [-n workers]
+     * @param args command line arguments
+     */
+    private static void handleMirror(String[] args){
+        int workers = DEFAULT_MIRROR_WORKERS;
+        if (args.length == 5 && args[3].equals("-n")) {
+            try {
+                workers = Integer.parseInt(args[4]);
+            } catch (NumberFormatException e) {
+                workers = 0;
+            }
+            if (workers < 1 || workers > MAX_SEGMENTS) {
+                printError("0x002 Incorrect number of arguments.");
+                return;
+            }
+        } else if (args.length != 3) {
+            printError("0x002 Incorrect number of arguments.");
+            return;
+        }
+        File localRoot = new File(args[2]);
+
+        FtpEngine.Endpoint endpoint = endpoint();
+        Semaphore running = new Semaphore(workers);
+        List<CompletableFuture<Boolean>> results = new ArrayList<>();
+        int unwalked = 0; // directories that could not be walked
+        try {
+            String home = session().pwd();
+            String remoteRoot = args[1].startsWith("/") || home == null ? args[1] : joinPath(home, args[1]);
+
+            // breadth first walk; files are handed to the workers as soon as they are listed
+            ArrayDeque<String> directories = new ArrayDeque<>();
+            directories.add(remoteRoot);
+            try {
+                while (!directories.isEmpty()) {
+                    String directory = directories.poll();
+                    // a directory listed within LISTING_TTL comes from the session's cache, without CWD or listing
+                    if (session().listings.get(directory) == null) {
+                        String fromServer = session().cd(directory);
+                        if (!fromServer.startsWith("250")) {
+                            System.out.println("<-- " + fromServer);
+                            transferFailed(directory);
+                            unwalked++;
+                            continue;
+                        }
+                    }
+                    File localDirectory = new File(localRoot, relativePath(remoteRoot, directory));
+                    // streamed, so files are handed to the workers while the listing is still arriving
+                    try (FtpListing listing = session().listing(directory)) {
+                        FtpEntry entry;
+                        while ((entry = listing.read()) != null) {
+                            String remotePath = joinPath(directory, entry.name);
+                            if (entry.directory) {
+                                directories.add(remotePath);
+                            } else {
+                                File localFile = new File(localDirectory, entry.name);
+                                running.acquire(); // the walk waits while all workers are busy
+                                results.add(submit(endpoint,
+                                        new MirrorFile(remotePath, localFile, entry.size, entry.modified))
+                                        .whenComplete((fetched, failure) -> {
+                                            running.release();
+                                            if (failure != null) transferFailed(remotePath);
+                                        }));
+                            }
+                        }
+                    } catch (IOException e) {
+                        listingFailed(directory, e);
+                        unwalked++;
+                    }
+                }
+            } finally {
+                if (home != null) session().cd(home);
+            }
+        } catch (IOException e) {
+            reconnect();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        int fetched = 0, skipped = 0, failed = 0;
+        for (CompletableFuture<Boolean> result : results) {
+            try {
+                if (result.get()) fetched++;
+                else skipped++;
+            } catch (ExecutionException e) {
+                failed++;
+            } catch (InterruptedException e) {
+                failed++;
+            }
+        }
+        System.out.println("mirror: " + fetched + " fetched, " + skipped + " up to date, " + failed + " failed.");
+        // the workers printed their own errors, the command still has to count as failed
+        if (failed > 0 || unwalked > 0) scriptFailed("0x3A7");
+    }
+
+    /**
+     * Handles the sync command: brings the local directory up to date with the remote tree, fetching only
+     * files that are new or whose size or modification time changed since the last sync. What was fetched is
+     * kept in a manifest (SyncManifest.FILE_NAME) in the local directory, so unchanged files cost no more than
+     * their line in the listing. With -c the server's checksum of each file is recorded too, and an unchanged
+     * looking file whose checksum differs from the recorded one is fetched again.
+     * Usage: sync remote local [-n workers] [-c]
+     * @param args command line arguments
+     */
+    private static void handleSync(String[] args){
+        int workers = DEFAULT_MIRROR_WORKERS;
+        boolean checksums = false;
+        int i = 3;
+        for (; i < args.length; i++) {
+            if (args[i].equals("-c")) {
+                checksums = true;
+            } else if (args[i].equals("-n") && i + 1 < args.length) {
+                try {
+                    workers = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    workers = 0;
+                }
+            } else {
+                break;
+            }
+        }
+        if (args.length < 3 || i != args.length || workers < 1 || workers > MAX_SEGMENTS) {
+            printError("0x002 Incorrect number of arguments.");
+            return;
+        }
+        File localRoot = new File(args[2]);
+        File manifestFile = new File(localRoot, SyncManifest.FILE_NAME);
+
+        FtpEngine.Endpoint endpoint = endpoint();
+        Semaphore running = new Semaphore(workers);
+        List<SyncFile> files = new ArrayList<>();
+        List<CompletableFuture<SyncManifest.Entry>> results = new ArrayList<>();
+        Set<String> skipped = new HashSet<>(); // directories that could not be walked, relative to the root
+        List<SyncManifest.Entry> carried = Collections.emptyList();
+        boolean complete = false;
+        // the manifest is only looked up during the walk, and has to be closed before it is rewritten below
+        try (SyncManifest manifest = openManifest(manifestFile)) {
+            try {
+                String home = session().pwd();
+                String remoteRoot = args[1].startsWith("/") || home == null ? args[1] : joinPath(home, args[1]);
+
+                // breadth first walk like mirror; every file is checked against the manifest by a worker
+                ArrayDeque<String> directories = new ArrayDeque<>();
+                directories.add(remoteRoot);
+                try {
+                    while (!directories.isEmpty()) {
+                        String directory = directories.poll();
+                        // a directory listed within LISTING_TTL comes from the session's cache, without CWD or listing
+                        if (session().listings.get(directory) == null) {
+                            String fromServer = session().cd(directory);
+                            if (!fromServer.startsWith("250")) {
+                                System.out.println("<-- " + fromServer);
+                                transferFailed(directory);
+                                skipped.add(relativePath(remoteRoot, directory));
+                                continue;
+                            }
+                        }
+                        String relativeDirectory = relativePath(remoteRoot, directory);
+                        // streamed, so files are handed to the workers while the listing is still arriving
+                        try (FtpListing listing = session().listing(directory)) {
+                            FtpEntry entry;
+                            while ((entry = listing.read()) != null) {
+                                String remotePath = joinPath(directory, entry.name);
+                                if (entry.directory) {
+                                    directories.add(remotePath);
+                                    continue;
+                                }
+                                String relative = relativeDirectory.isEmpty() ? entry.name
+                                        : joinPath(relativeDirectory, entry.name);
+                                SyncFile file = new SyncFile(remotePath, relative, new File(localRoot, relative), entry,
+                                        manifest.get(relative), checksums);
+                                running.acquire(); // the walk waits while all workers are busy
+                                files.add(file);
+                                results.add(submit(endpoint, file).whenComplete((e, failure) -> {
+                                    running.release();
+                                    if (failure != null) transferFailed(remotePath);
+                                }));
+                            }
+                        } catch (IOException e) {
+                            listingFailed(directory, e);
+                            skipped.add(relativeDirectory);
+                        }
+                    }
+                    // what was known about the directories that could not be walked is kept as it was
+                    if (!skipped.isEmpty()) carried = manifest.under(skipped);
+                    complete = true;
+                } finally {
+                    if (home != null) session().cd(home);
+                }
+            } catch (IOException e) {
+                reconnect();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        int fetched = 0, unchanged = 0, failed = 0;
+        List<SyncManifest.Entry> entries = new ArrayList<>();
+        for (int j = 0; j < results.size(); j++) {
+            try {
+                entries.add(results.get(j).get());
+                if (files.get(j).fetched) fetched++;
+                else unchanged++;
+            } catch (ExecutionException | InterruptedException e) {
+                failed++;
+                // keep the old line so the file is looked at again next time
+                if (files.get(j).known != null) entries.add(files.get(j).known);
+            }
+        }
+        if (!carried.isEmpty()) {
+            // a listing that broke off part way handed some of its files to the workers already
+            Set<String> seen = new HashSet<>();
+            for (SyncFile file : files) seen.add(file.relativePath);
+            for (SyncManifest.Entry entry : carried) {
+                if (!seen.contains(entry.path)) entries.add(entry);
+            }
+        }
+        System.out.println("sync: " + fetched + " fetched, " + unchanged + " unchanged, " + failed + " failed.");
+        if (failed > 0 || !skipped.isEmpty()) scriptFailed("0x3A7");
+
+        // an interrupted walk did not see every file, so the old manifest still says more
+        if (complete) {
+            try {
+                if (!localRoot.isDirectory() && !localRoot.mkdirs()) {
+                    throw new IOException("cannot create " + localRoot);
+                }
+                SyncManifest.write(manifestFile, entries);
+            } catch (IOException e) {
+                printError("0x38E Access to local file " + manifestFile + " denied.");
+            }
+        }
+    }
+
+    /**
+     * Opens the manifest of a sync. A damaged one is reported and replaced by an empty one, so every file
+     * is looked at again and the manifest is rewritten at the end of the run.
+     */
+    private static SyncManifest openManifest(File manifestFile){
+        try {
+            return SyncManifest.open(manifestFile);
+        } catch (IOException e) {
+            System.out.println("Ignoring damaged manifest " + manifestFile + " (" + e.getMessage()
+                    + "), checking every file again.");
+            return SyncManifest.empty();
+        }
+    }
+
+    /**
+     * One file of a sync run. Compares the listing, and with checksums the server's checksum, with the
+     * manifest line from the last run, fetches the file when they differ and returns the line to keep.
+     */
+    private static class SyncFile implements FtpEngine.Task<SyncManifest.Entry> {
+        private final String remotePath;
+        private final String relativePath;
+        private final File localFile;
+        private final FtpEntry listed;
+        final SyncManifest.Entry known; // null if the file was not fetched before
+        private final boolean checksums;
+        private final FtpEngine.Download download; // what earlier tries fetched, when the engine retries
+        volatile boolean fetched;
+
+        SyncFile(String remotePath, String relativePath, File localFile, FtpEntry listed, SyncManifest.Entry known,
+                 boolean checksums){
+            this.remotePath = remotePath;
+            this.relativePath = relativePath;
+            this.localFile = localFile;
+            this.listed = listed;
+            this.known = known;
+            this.checksums = checksums;
+            this.download = new FtpEngine.Download(remotePath, 0, -1);
+        }
+
+        @Override
+        public SyncManifest.Entry run(FtpSession control, ByteBuffer buffer) throws IOException {
+            // MLSD listings already carry the time, LIST ones need an MDTM
+            long modified = listed.modified >= 0 ? listed.modified
+                    : FtpSession.parseModified(control.query("MDTM", remotePath));
+            boolean same = known != null && localFile.isFile() && localFile.length() == known.size
+                    && listed.size == known.size && modified == known.modified;
+            String checksum = null;
+            if (checksums) {
+                checksum = control.checksum(remotePath);
+                if (same && checksum != null && known.checksum != null) same = checksum.equals(known.checksum);
+            }
+            if (same) {
+                return checksum == null || checksum.equals(known.checksum) ? known
+                        : new SyncManifest.Entry(relativePath, known.size, known.modified, checksum);
+            }
+
+            File parent = localFile.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                printError("0x38E Access to local file " + localFile + " denied.");
+                throw new IOException("cannot create " + parent);
+            }
+            long received;
+            try (FileChannel fileOut = FileChannel.open(localFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE)) {
+                fileOut.truncate(download.done());
+                received = download.fetch(control, fileOut, buffer, null);
+            }
+            if (modified >= 0) localFile.setLastModified(modified);
+            fetched = true;
+            System.out.println(remotePath + " -> " + localFile);
+            return new SyncManifest.Entry(relativePath, received, modified, checksum);
+        }
+    }
+
+    // Joins a remote directory and a name with a single slash
+    private static String joinPath(String directory, String name){
+        return directory.endsWith("/") ? directory + name : directory + "/" + name;
+    }
+
+    // Returns path relative to root, both being remote paths with root a prefix of path
+    private static String relativePath(String root, String path){
+        String relative = path.substring(root.length());
+        return relative.startsWith("/") ? relative.substring(1) : relative;
+    }
+
+    // Reports a mirror or sync file the engine gave up on after its retries
+    private static void transferFailed(String remotePath){
+        printError("0x3A7 Data transfer connection I/O error on " + remotePath + ".");
+    }
+
+    /**
+     * Reports a directory of a mirror or sync walk that could not be listed, because the server refused the
+     * listing or the data connection failed, so the walk can go on with the next directory.
+     * @param e what the listing failed with: the server's reply, or the data connection's error
+     * @throws IOException e again if the control connection no longer answers, for the caller to reconnect
+     */
+    private static void listingFailed(String directory, IOException e) throws IOException {
+        if (!session().noop()) throw e;
+        String reply = e.getMessage();
+        if (reply != null && FtpReply.parseCode(reply) >= 0) System.out.println("<-- " + reply);
+        transferFailed(directory);
+    }
+
+    /**
+     * One file of a mirror run, checked and fetched on a pooled control connection.
+     * Returns true if the file was fetched and false if the local copy was already up to date.
+     */
+    private static class MirrorFile implements FtpEngine.Task<Boolean> {
+        private final String remotePath;
+        private final File localFile;
+        private final long size;
+        private final long modified;
+        private final FtpEngine.Download download; // what earlier tries fetched, when the engine retries
+
+        MirrorFile(String remotePath, File localFile, long size, long modified){
+            this.remotePath = remotePath;
+            this.localFile = localFile;
+            this.size = size;
+            this.modified = modified;
+            this.download = new FtpEngine.Download(remotePath, 0, -1);
+        }
+
+        @Override
+        public Boolean run(FtpSession control, ByteBuffer buffer) throws IOException {
+            // MLSD listings already carry the time, LIST ones need an MDTM
+            long modified = this.modified >= 0 ? this.modified
+                    : FtpSession.parseModified(control.query("MDTM", remotePath));
+            // file systems keep different precisions, so compare whole seconds
+            if (localFile.isFile() && size >= 0 && localFile.length() == size
+                    && modified >= 0 && localFile.lastModified() / 1000 == modified / 1000) {
+                return false;
+            }
+
+            File parent = localFile.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                printError("0x38E Access to local file " + localFile + " denied.");
+                throw new IOException("cannot create " + parent);
+            }
+            try (FileChannel fileOut = FileChannel.open(localFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE)) {
+                fileOut.truncate(download.done());
+                download.fetch(control, fileOut, buffer, null);
+            }
+            if (modified >= 0) localFile.setLastModified(modified);
+            System.out.println(remotePath + " -> " + localFile);
+            return true;
+        }
+    }
+
+    /**
+     * One command script of a batch run and the outcome of the command it is running.
+     */
+    private static class Script {
+        final String fileName;
+        final ByteArrayOutputStream transcript; // output held back until the script ends, null to print as it goes
+        int status = EXIT_OK;
+        String error; // error code of the running command, null while it has not failed
+
+        Script(String fileName, boolean buffered){
+            this.fileName = fileName;
+            this.transcript = buffered ? new ByteArrayOutputStream() : null;
+        }
+    }
+
+    // Thrown by exit to end a script instead of the program
+    private static class ScriptExit extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        ScriptExit(int status){
+            super(null, null, false, false);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Standard output for batch runs: whatever a worker prints while running a buffered script goes to that
+     * script's transcript, so the output of scripts running side by side does not interleave.
+     */
+    private static class ScriptOutput extends OutputStream {
+        private final PrintStream console;
+
+        ScriptOutput(PrintStream console){
+            this.console = console;
+        }
+
+        private OutputStream target(){
+            Script script = scripts.get();
+            return script != null && script.transcript != null ? script.transcript : console;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            target().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            target().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target().flush();
+        }
+    }
+
+    /**
+     * Runs command scripts without prompting. Each of the workers keeps one control connection, logged in
+     * with login when given, and runs the scripts it takes from the list one after the other on it, starting
+     * each in the login directory. Every command is recorded in the result log as one JSON line.
+     * @param scriptFiles the scripts, in the order they are started
+     * @param workers     number of scripts run at once
+     * @param login       "user:password" to log in before each worker's first script, or null
+     * @param log         where the result lines go
+     * @return the highest exit code of any script
+     */
+    private static int runBatch(List<String> scriptFiles, int workers, String login, PrintStream log){
+        if (workers > 1) System.setOut(new PrintStream(new ScriptOutput(System.out), true));
+        ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<>(scriptFiles);
+        AtomicInteger status = new AtomicInteger(EXIT_OK);
+        Thread[] threads = new Thread[Math.min(workers, scriptFiles.size())];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                String home = null;
+                String fileName;
+                while ((fileName = queue.poll()) != null) {
+                    Script script = new Script(fileName, workers > 1);
+                    try {
+                        if (session() == null || !session().isConnected()) home = null;
+                        home = runScript(script, login, home, log);
+                    } catch (RuntimeException e) {
+                        // failed outside its commands, e.g. while logging in; the other scripts go on
+                        System.out.println("0xFFFF Processing error. " + e + ".");
+                        logResult(log, script, 0, null, "0xFFFF", null, 0);
+                        script.status = EXIT_INTERNAL;
+                        if (session() != null) session().close();
+                        home = null;
+                    } finally {
+                        status.accumulateAndGet(script.status, Math::max);
+                        if (script.transcript != null) {
+                            synchronized (System.out) {
+                                System.out.print(script.transcript);
+                                System.out.flush();
+                            }
+                        }
+                    }
+                }
+                if (session() != null) session().close();
+            }, "batch-" + (i + 1));
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return EXIT_INTERNAL;
+            }
+        }
+        return status.get();
+    }
+
+    /**
+     * Runs one script on this thread's control connection, opening it first if there is none, and
+     * sets the script's status.
+     * @param home the login directory when the connection is already open, null otherwise
+     * @return the login directory of the connection, or null if it is not open any more
+     */
+    private static String runScript(Script script, String login, String home, PrintStream log){
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(Paths.get(script.fileName));
+        } catch (IOException e) {
+            logResult(log, script, 0, null, "0xFFFE", null, 0);
+            script.status = EXIT_USAGE;
+            return home;
+        }
+
+        scripts.set(script);
+        try {
+            if (home == null) {
+                home = openBatchSession(login);
+            } else if (!home.equals(session().pwd())) {
+                session().cd(home);
+            }
+        } catch (ScriptExit | IOException e) {
+            logResult(log, script, 0, null, "0xFFFC", null, 0);
+            script.status = EXIT_CONNECTION;
+            scripts.remove();
+            return null;
+        }
+        // compress, retry, tune, pipeline and verify in an earlier script on this connection do not carry over
+        session().resetSettings();
+
+        try {
+            for (int i = 0; i < lines.size(); i++) {
+                String line = lines.get(i).trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                System.out.println("csftp> " + line);
+                script.error = null;
+                session().lastReply = null;
+                long started = System.nanoTime();
+                try {
+                    runCommand(line);
+                } catch (ScriptExit e) {
+                    if (e.status != EXIT_OK && script.error == null) script.error = "0xFFFD";
+                    finishCommand(log, script, i + 1, line, started);
+                    script.status = Math.max(script.status, e.status);
+                    return e.status == EXIT_OK && session().isConnected() ? home : null;
+                } catch (RuntimeException e) {
+                    // a bug rather than a failed command: the script stops here and its connection is dropped
+                    printError("0xFFFF Processing error. " + e + ".");
+                    script.error = "0xFFFF";
+                    finishCommand(log, script, i + 1, line, started);
+                    script.status = EXIT_INTERNAL;
+                    session().close();
+                    return null;
+                }
+                finishCommand(log, script, i + 1, line, started);
+            }
+            return session().isConnected() ? home : null;
+        } finally {
+            scripts.remove();
+        }
+    }
+
+    // Opens this thread's control connection for a batch worker and returns its login directory
+    private static String openBatchSession(String login) throws IOException {
+        FtpSession session = new FtpSession(serverAddress, serverPort);
+        sessions.set(session);
+        if (login == null) {
+            session.connect();
+            handleFirst();
+        } else {
+            int colon = login.indexOf(':');
+            session.open(colon < 0 ? login : login.substring(0, colon), colon < 0 ? "" : login.substring(colon + 1));
+        }
+        return session.pwd();
+    }
+
+    // Logs a finished script command; a 4xx or 5xx last reply fails it even without a client error
+    private static void finishCommand(PrintStream log, Script script, int line, String command, long started){
+        FtpReply reply = session().lastReply;
+        if (script.error == null && reply != null && reply.code >= 400) script.error = String.valueOf(reply.code);
+        if (script.error != null) script.status = Math.max(script.status, EXIT_COMMAND_FAILED);
+        logResult(log, script, line, command, script.error, reply == null ? null : reply.last(),
+                System.nanoTime() - started);
+    }
+
+    /**
+     * Writes one line of the batch result log:
+     * {"script":"a.txt","line":3,"command":"get x","status":"ok","error":null,"reply":"226 ...","millis":12.5}
+     * Passwords given with pw are not logged.
+     */
+    private static void logResult(PrintStream log, Script script, int line, String command, String error,
+                                  String reply, long nanos){
+        if (command != null && command.startsWith("pw ")) command = "pw ***";
+        String result = "{\"script\":" + jsonString(script.fileName) + ",\"line\":" + line
+                + ",\"command\":" + jsonString(command) + ",\"status\":\"" + (error == null ? "ok" : "failed")
+                + "\",\"error\":" + jsonString(error) + ",\"reply\":" + jsonString(reply)
+                + ",\"millis\":" + nanos / 1000 / 1000.0 + "}";
+        synchronized (log) {
+            log.println(result);
+        }
+    }
+
+    // Returns a JSON string literal, or null
+    private static String jsonString(String value){
+        if (value == null) return "null";
+        StringBuilder json = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') json.append('\\').append(c);
+            else if (c < ' ') json.append(String.format("\\u%04x", (int) c));
+            else json.append(c);
+        }
+        return json.append('"').toString();
+    }
+
+    
+    /**
+     * Gets the user command from the command line and calls runCommand with it. The end of the input quits.
+     *
+     */
+    private static void handleCommand(){
+        String fromUser; // user input from the command line
+
+        try {
+            fromUser = clientIn.readLine();
+        } catch (IOException e){
+            printError("0xFFFE Input error while reading commands, terminating.");
+            System.exit(EXIT_USAGE);
+            return;
+        }
+        runCommand(fromUser == null ? "quit" : fromUser);
+    }
+
+    /**
+     * Calls the command handler for one command line, typed or read from a script.
+     * @param fromUser the command line
+     */
+    private static void runCommand(String fromUser){
+        String command;
+        int argc;        // user input argument count
+        String cmds[]; // command as a string array
+
+        cmds = fromUser.split(" ");
+        command = cmds[0];
+        argc = cmds.length;
+
+        switch (command) {
+            // handle login
+            case "user":
+                handleUser(cmds);
+                break;
+            case "pw":
+                handlePass(cmds);
+                break;
+            case "quit":
+                handleQuit(cmds);
+                break;
+            case "get":
+                handleGet(cmds);
+                break;
+            case "reget":
+                handleReget(cmds);
+                break;
+            case "pget":
+                handlePget(cmds);
+                break;
+            case "mirror":
+                handleMirror(cmds);
+                break;
+            case "pipeline":
+                handlePipeline(cmds);
+                break;
+            case "put":
+                handlePut(cmds, false);
+                break;
+            case "append":
+                handlePut(cmds, true);
+                break;
+            case "mput":
+                handleMput(cmds);
+                break;
+            case "features":
+                handleFeatures(cmds);
+                break;
+            case "cd":
+                handleCd(cmds);
+                break;
+            case "dir":
+                handleDir(cmds);
+                break;
+            case "sync":
+                handleSync(cmds);
+                break;
+            case "verify":
+                handleVerify(cmds);
+                break;
+            case "compress":
+                handleCompress(cmds);
+                break;
+            case "throttle":
+                handleThrottle(cmds);
+                break;
+            case "retry":
+                handleRetry(cmds);
+                break;
+            case "tune":
+                handleTune(cmds);
+                break;
+            case "metrics":
+                handleMetrics(cmds);
+                break;
+            case "":
+                break;
+            case " ":
+                break;
+            case "#":
+                break;
+            default:
+                printError("0x001 Invalid commad.");
+                break;
+        }
+
+    }
+
+    
+    // Prints the command line usage
+    private static void printUsage(){
+        System.out.print("Usage: cmd ServerAddress ServerPort [-b script...] [-j scripts at once] [-u user:password]"
+                + " [-l result log]\n");
+    }
+
+    public static void main(String [] args)
+    {
+        // Get command line arguments and connected to FTP
+        // If the arguments are invalid or there aren't enough of them
+        // then exit.
+        int positional = 0;
+        while (positional < args.length && !args[positional].startsWith("-")) positional++;
+        if (positional > ARG_CNT || positional < ARG_NO_PORT) {
+            printUsage();
+            System.exit(EXIT_USAGE);
+        }
+
+        // batch options: -b scripts to run instead of reading commands, -j how many at once,
+        // -u login for each connection, -l file for the result log (standard error by default)
+        List<String> scriptFiles = new ArrayList<>();
+        int workers = 1;
+        String login = null;
+        String logFile = null;
+        for (int i = positional; i < args.length; i++) {
+            try {
+                switch (args[i]) {
+                    case "-b":
+                        while (i + 1 < args.length && !args[i + 1].startsWith("-")) scriptFiles.add(args[++i]);
+                        break;
+                    case "-j":
+                        workers = Integer.parseInt(args[++i]);
+                        break;
+                    case "-u":
+                        login = args[++i];
+                        break;
+                    case "-l":
+                        logFile = args[++i];
+                        break;
+                    default:
+                        workers = 0;
+                        break;
+                }
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                workers = 0;
+            }
+            if (workers < 1) {
+                printUsage();
+                System.exit(EXIT_USAGE);
+            }
+        }
+        if (scriptFiles.isEmpty() && (login != null || logFile != null)) {
+            printUsage();
+            System.exit(EXIT_USAGE);
+        }
+
+        // Get the server address and port; default port is 21 if no port is provided
+        serverAddress = args[0];
+        if (positional == 1){
+            serverPort = 21;
+        }
+        else {
+            try {
+                serverPort = Integer.parseInt(args[1]);
+            } catch (NumberFormatException e) {
+                printUsage();
+                System.exit(EXIT_USAGE);
+            }
+        }
+
+        // every session, interactive or pooled, reports to the registry and to JFR when it is recording
+        FtpSession.defaultMetrics = FtpMetrics.of(metrics, new JfrMetrics());
+
+        if (!scriptFiles.isEmpty()) {
+            int status;
+            try (PrintStream log = logFile == null ? System.err : new PrintStream(new FileOutputStream(logFile), true)) {
+                status = runBatch(scriptFiles, workers, login, log);
+            } catch (IOException e) {
+                printError("0x38E Access to local file " + logFile + " denied.");
+                status = EXIT_USAGE;
+            }
+            engine.close();
+            System.exit(status);
+        }
+
+        // loop until quit or fatal error
+        try {
+            for (int len = 1; len > 0;) {
+
+                // a connection that was lost is opened again in the state it was in
+                if (session() != null && !session().isConnected()) reconnect();
 
                 // make sure the socket is connected
-                if (socket.isClosed() || !socket.isConnected()){
+                if (session() == null){
                     try{
-                        socket = new Socket();
-                        socket.connect(new InetSocketAddress(serverAddress, serverPort), 20000);
-                        ftpIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                        clientOut = new PrintWriter(socket.getOutputStream());
+                        sessions.set(new FtpSession(serverAddress, serverPort));
+                        session().connect();
                         clientIn = new BufferedReader(new InputStreamReader(System.in));
                     } catch (IOException e) {
-                        System.out.println("0xFFFD Control connection I/O error, closing control connection.");
-                        System.exit(0);
+                        printError("0xFFFD Control connection I/O error, closing control connection.");
+                        System.exit(EXIT_CONNECTION);
                     } catch (Exception e) {
-                        System.out.println("0xFFFC Connection Error on server: " + serverAddress + " port: " + serverPort);
-                        System.exit(0);
+                        printError("0xFFFC Connection Error on server: " + serverAddress + " port: " + serverPort);
+                        System.exit(EXIT_CONNECTION);
                     }
                     // if all is good: handle the first response from the server
                     handleFirst();
@@ -519,7 +1964,7 @@ public class BasicFTP
             }
         } catch (Exception excp){
             System.err.println("0xFFFF Processing error. " + excp.getMessage() + ".");
-            System.exit(0);
+            System.exit(EXIT_INTERNAL);
         }
         }
 }
@@ -0,0 +1,66 @@
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+//
+// Listings of remote directories kept by an FtpSession so repeated listings
+// of the same directory skip the PASV and LIST/MLSD round trips. Entries
+// expire after a fixed time and the least recently used directory is dropped
+// once the cache is full.
+//
+
+
+public class DirectoryCache
+{
+    private static class Listing {
+        final List<FtpEntry> entries;
+        final long created = System.currentTimeMillis();
+
+        Listing(List<FtpEntry> entries){
+            this.entries = entries;
+        }
+    }
+
+    private final long ttlMillis;
+    private final LinkedHashMap<String, Listing> listings;
+
+    /**
+     * @param maxDirectories most directories kept before the least recently used one is dropped
+     * @param ttlMillis      how long a listing stays valid
+     */
+    DirectoryCache(int maxDirectories, long ttlMillis){
+        this.ttlMillis = ttlMillis;
+        this.listings = new LinkedHashMap<String, Listing>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Listing> eldest){
+                return size() > maxDirectories;
+            }
+        };
+    }
+
+    /**
+     * @return the cached listing of path, or null if there is none or it has expired
+     */
+    synchronized List<FtpEntry> get(String path){
+        Listing listing = listings.get(path);
+        if (listing == null) return null;
+        if (System.currentTimeMillis() - listing.created > ttlMillis) {
+            listings.remove(path);
+            return null;
+        }
+        return listing.entries;
+    }
+
+    synchronized void put(String path, List<FtpEntry> entries){
+        listings.put(path, new Listing(entries));
+    }
+
+    // Drops the listing of one directory, e.g. after a file was uploaded into it
+    synchronized void invalidate(String path){
+        listings.remove(path);
+    }
+
+    synchronized void clear(){
+        listings.clear();
+    }
+}
@@ -0,0 +1,292 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//
+// Runs ftp work for any number of servers concurrently and hands back
+// CompletableFutures. Every task gets its own FtpSession from a shared
+// FtpSessionPool, so no state is shared between tasks except the pool.
+// Tasks run on virtual threads when the JVM has them and on a bounded pool
+// of daemon threads otherwise. A task that fails because its connection was
+// lost is run again on a new session after the retry policy's backoff. Each
+// Endpoint carries the settings of the session the work comes from, so work
+// from scripts with different settings can share the pooled sessions.
+//
+
+
+public class FtpEngine implements Closeable
+{
+    static final int DEFAULT_THREADS = 256;
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Where and as whom to log in, and with which settings the work is done.
+     */
+    static final class Endpoint {
+        final String host;
+        final int port;
+        final String user;
+        final String password;
+        // settings of the session the work comes from, given to every pooled session that does it
+        final boolean compression;
+        final RetryPolicy retry;
+        final SocketTuning tuning;
+        final boolean pipelining;
+
+        Endpoint(String host, int port, String user, String password){
+            this(host, port, user, password, new FtpSession(host, port));
+        }
+
+        /**
+         * @param settings the session whose compression, retry, tuning and pipelining settings the work uses,
+         *                 as they are now
+         */
+        Endpoint(String host, int port, String user, String password, FtpSession settings){
+            this.host = host;
+            this.port = port;
+            this.user = user;
+            this.password = password;
+            this.compression = settings.compression;
+            this.retry = settings.retry;
+            this.tuning = settings.tuning;
+            this.pipelining = settings.pipelining;
+        }
+
+        // Gives a pooled session the settings the work is to be done with
+        void configure(FtpSession session){
+            session.compression = compression;
+            session.retry = retry;
+            session.tuning = tuning;
+            session.pipelining = pipelining;
+        }
+
+        @Override
+        public String toString(){
+            return user + "@" + host + ":" + port;
+        }
+    }
+
+    /**
+     * Work done on one logged in session. The buffer is a direct transfer buffer the task may use until it
+     * returns.
+     */
+    interface Task<T> {
+        T run(FtpSession session, ByteBuffer buffer) throws IOException;
+    }
+
+    /**
+     * A download that remembers how much of it earlier tries wrote, so a task run again after a lost
+     * connection continues with REST instead of starting over.
+     */
+    static final class Download {
+        final String remotePath;
+        final long offset;
+        final long length; // negative for the rest of the file
+        private long done;
+
+        Download(String remotePath, long offset, long length){
+            this.remotePath = remotePath;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Fetches what earlier tries did not into out, at the same offsets as in the remote file.
+         * @param progress counter for bytes written, may be null
+         * @return the number of bytes fetched by all tries together
+         * @throws IOException if the control or data connection fails or the server refuses the file
+         */
+        long fetch(FtpSession session, FileChannel out, ByteBuffer buffer, AtomicLong progress) throws IOException {
+            try {
+                done += session.retrieve(remotePath, offset + done, length < 0 ? -1 : length - done, out, buffer,
+                        progress);
+                return done;
+            } catch (IOException e) {
+                done += session.partialBytes;
+                throw e;
+            }
+        }
+
+        /**
+         * @return the number of bytes fetched so far
+         */
+        long done(){
+            return done;
+        }
+    }
+
+    final FtpSessionPool pool;
+
+    // how the bandwidth scheduler weighs the engine's transfers against interactive ones
+    volatile String trafficClass = BandwidthScheduler.BULK;
+
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+
+    // direct buffers are expensive to allocate, so finished tasks hand theirs back here
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param sessionsPerEndpoint most sessions open at once for one host/port/user
+     * @param keepAliveMillis     idle time after which a pooled session is checked with NOOP
+     * @param maxIdleMillis       idle time after which a pooled session is closed
+     * @param maxThreads          most tasks running at once when virtual threads are not available
+     */
+    FtpEngine(int sessionsPerEndpoint, long keepAliveMillis, long maxIdleMillis, int maxThreads){
+        this.pool = new FtpSessionPool(sessionsPerEndpoint, keepAliveMillis, maxIdleMillis);
+        ExecutorService virtual = virtualThreadExecutor();
+        this.virtualThreads = virtual != null;
+        this.executor = virtual != null ? virtual : platformThreadExecutor(maxThreads);
+    }
+
+    // Returns a virtual thread per task executor, or null before Java 21
+    private static ExecutorService virtualThreadExecutor(){
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // Returns a pool of up to maxThreads daemon threads that go away when idle
+    private static ExecutorService platformThreadExecutor(int maxThreads){
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "ftp-engine-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @return true if tasks run on virtual threads
+     */
+    boolean usesVirtualThreads(){
+        return virtualThreads;
+    }
+
+    /**
+     * Runs a task on a pooled session for the endpoint. The session goes back to the pool when the task
+     * succeeds and is closed when it throws, since its control connection may be out of step. A task that
+     * fails in a way the retry policy retries is run again on another session.
+     * @return a future completed with the task's result, or exceptionally with its IOException
+     */
+    <T> CompletableFuture<T> submit(Endpoint endpoint, Task<T> task){
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    result.complete(run(endpoint, task));
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(new IOException("engine closed"));
+        }
+        return result;
+    }
+
+    // Runs a task on the calling thread with a pooled session and a borrowed buffer, retrying it as needed
+    private <T> T run(Endpoint endpoint, Task<T> task) throws IOException, InterruptedException {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try {
+            for (int attempt = 1; ; attempt++) {
+                FtpSession session = null;
+                try {
+                    session = pool.checkout(endpoint.host, endpoint.port, endpoint.user, endpoint.password,
+                            endpoint.pipelining);
+                    endpoint.configure(session);
+                    session.trafficClass = trafficClass;
+                    T value = task.run(session, buffer);
+                    pool.checkin(session);
+                    return value;
+                } catch (IOException e) {
+                    if (session != null) pool.discard(session);
+                    RetryPolicy retry = endpoint.retry;
+                    if (!retry.retries(e, attempt)) throw e;
+                    FtpSession.defaultMetrics.retry("reconnect");
+                    retry.pause(attempt);
+                } catch (RuntimeException e) {
+                    if (session != null) pool.discard(session);
+                    throw e;
+                }
+            }
+        } finally {
+            buffers.add(buffer);
+        }
+    }
+
+    /**
+     * Retrieves a remote file into a local one, replacing its contents.
+     * @return a future completed with the number of bytes received
+     */
+    CompletableFuture<Long> retrieve(Endpoint endpoint, String remotePath, File localFile){
+        Download download = new Download(remotePath, 0, -1);
+        return submit(endpoint, (session, buffer) -> {
+            try (FileChannel out = FileChannel.open(localFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE)) {
+                out.truncate(download.done());
+                return download.fetch(session, out, buffer, null);
+            }
+        });
+    }
+
+    /**
+     * Retrieves length bytes of a remote file from offset onwards into the same range of out, which may be
+     * shared with other ranges of the same file.
+     * @param progress counter for bytes written, may be null
+     * @return a future completed with the number of bytes received
+     */
+    CompletableFuture<Long> retrieve(Endpoint endpoint, String remotePath, long offset, long length,
+                                     FileChannel out, AtomicLong progress){
+        Download download = new Download(remotePath, offset, length);
+        return submit(endpoint, (session, buffer) -> download.fetch(session, out, buffer, progress));
+    }
+
+    /**
+     * Uploads a local file with STOR, or with APPE when append is set. A failed STOR is sent again from the
+     * start; a failed APPE is not, since part of the file may already have been added.
+     * @return a future completed with the number of bytes sent
+     */
+    CompletableFuture<Long> store(Endpoint endpoint, File localFile, String remotePath, boolean append){
+        return submit(endpoint, (session, buffer) -> {
+            try {
+                return session.store(localFile, remotePath, append);
+            } catch (IOException e) {
+                if (!append) throw e;
+                throw new IOException("append to " + remotePath + " failed: " + e.getMessage(), e);
+            }
+        });
+    }
+
+    /**
+     * Lists a remote directory with MLSD or LIST.
+     * @return a future completed with the entries of the directory
+     */
+    CompletableFuture<List<FtpEntry>> list(Endpoint endpoint, String path){
+        return submit(endpoint, (session, buffer) -> session.list(path));
+    }
+
+    /**
+     * Stops taking tasks, lets the running ones finish and closes the pooled sessions.
+     */
+    public void close(){
+        executor.shutdown();
+        try {
+            executor.awaitTermination(FtpSession.CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pool.close();
+    }
+}
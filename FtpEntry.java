@@ -0,0 +1,144 @@
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.function.Predicate;
+
+//
+// One entry of a remote directory listing, parsed from MLSD facts or from
+// Unix or DOS style LIST output.
+//
+
+
+public class FtpEntry
+{
+    final String name;
+    final long size;        // -1 when the listing does not say
+    final long modified;    // milliseconds since the epoch, -1 when the listing does not say
+    final boolean directory;
+
+    FtpEntry(String name, long size, long modified, boolean directory){
+        this.name = name;
+        this.size = size;
+        this.modified = modified;
+        this.directory = directory;
+    }
+
+    /**
+     * Parses one line of MLSD output (RFC 3659), e.g. "type=file;size=108894;modify=20261018015507; nums.txt".
+     * @return the entry, or null for the current and parent directory and for anything that is neither a
+     * file nor a directory
+     */
+    static FtpEntry parseMlsd(String line){
+        int space = line.indexOf(' ');
+        if (space < 0) return null;
+        String name = line.substring(space + 1);
+        String type = null;
+        long size = -1;
+        long modified = -1;
+        for (String fact : line.substring(0, space).split(";")) {
+            int equals = fact.indexOf('=');
+            if (equals < 0) continue;
+            String key = fact.substring(0, equals).toLowerCase(Locale.ROOT);
+            String value = fact.substring(equals + 1);
+            switch (key) {
+                case "type":
+                    type = value.toLowerCase(Locale.ROOT);
+                    break;
+                case "size":
+                    size = parseLong(value);
+                    break;
+                case "modify":
+                    modified = FtpSession.parseModified(value);
+                    break;
+                default:
+                    break;
+            }
+        }
+        if ("file".equals(type)) return new FtpEntry(name, size, modified, false);
+        if ("dir".equals(type)) return new FtpEntry(name, -1, modified, true);
+        return null;
+    }
+
+    /**
+     * Parses one line of LIST output in either Unix style,
+     * "-rw-r--r--   1 ftp ftp  108894 Oct 18 01:55 nums.txt", or DOS style,
+     * "10-18-26  01:55AM       108894 nums.txt". LIST times are in the server's own format and time zone,
+     * so they are not used and the entry's modification time is left unknown.
+     * @return the entry, or null for lines that are not entries (totals, "." and "..", links)
+     */
+    static FtpEntry parseList(String line){
+        if (!line.isEmpty() && Character.isDigit(line.charAt(0))) return parseDosList(line);
+        String[] fields = line.trim().split("\\s+", 9);
+        if (fields.length < 9 || fields[0].isEmpty()) return null;
+        char type = fields[0].charAt(0);
+        if (type != '-' && type != 'd') return null;
+        String name = fields[8];
+        if (name.equals(".") || name.equals("..")) return null;
+        return new FtpEntry(name, parseLong(fields[4]), -1, type == 'd');
+    }
+
+    // Parses a DOS style LIST line: date, time, "<DIR>" or the size, then the name
+    private static FtpEntry parseDosList(String line){
+        String[] fields = line.trim().split("\\s+", 4);
+        if (fields.length < 4) return null;
+        String name = fields[3];
+        if (name.equals(".") || name.equals("..")) return null;
+        boolean directory = fields[2].equalsIgnoreCase("<DIR>");
+        return new FtpEntry(name, directory ? -1 : parseLong(fields[2]), -1, directory);
+    }
+
+    /**
+     * Returns a filter for entries whose name matches a glob pattern such as "*.csv" or "report-202?-*".
+     */
+    static Predicate<FtpEntry> named(String glob){
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        return entry -> {
+            try {
+                return matcher.matches(Paths.get(entry.name));
+            } catch (InvalidPathException e) {
+                return false; // a name this file system could not hold cannot be fetched under it either
+            }
+        };
+    }
+
+    /**
+     * Returns a filter for files whose size is known and at least min and at most max bytes. Directories never
+     * pass, whatever size LIST shows for them.
+     */
+    static Predicate<FtpEntry> sized(long min, long max){
+        return entry -> !entry.directory && entry.size >= 0 && entry.size >= min && entry.size <= max;
+    }
+
+    /**
+     * Returns a filter for entries whose modification time is known and not before after and not after
+     * before, both in milliseconds since the epoch. LIST entries carry no usable time and never pass.
+     */
+    static Predicate<FtpEntry> modified(long after, long before){
+        return entry -> entry.modified >= 0 && entry.modified >= after && entry.modified <= before;
+    }
+
+    // Returns the number in value, or -1 if it is not one
+    private static long parseLong(String value){
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public String toString(){
+        String time = "-";
+        if (modified >= 0) {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            time = format.format(modified);
+        }
+        return String.format("%s %12s %16s %s", directory ? "d" : "-", size < 0 ? "-" : Long.toString(size),
+                time, name);
+    }
+}
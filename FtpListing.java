@@ -0,0 +1,150 @@
+import java.io.*;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+//
+// A directory listing read while it arrives. Entries are parsed one line at a
+// time from the data connection, so a directory of millions of files takes no
+// more memory than one of ten, and the caller can act on the first entries
+// while the server is still sending the rest. The session's control connection
+// is busy until the listing is closed. A complete listing of an absolute path
+// that is not too large goes into the session's cache, and a listing served
+// from there touches no connection at all.
+//
+
+
+public class FtpListing implements Closeable
+{
+    private final FtpSession session;
+    private final SocketChannel dataChannel;
+    private final BufferedReader dataIn;
+    private final boolean mlsd;
+    private final String path;
+    private final long requested;
+    private final Iterator<FtpEntry> cached; // entries of a listing served from the cache, else null
+    private List<FtpEntry> recorded;         // entries kept for the cache, null if this listing is not cached
+    private long bytes;
+    private boolean ended;   // the data connection has no more lines
+    private boolean closed;
+
+    FtpListing(FtpSession session, SocketChannel dataChannel, BufferedReader dataIn, boolean mlsd, String path,
+               long requested){
+        this.session = session;
+        this.dataChannel = dataChannel;
+        this.dataIn = dataIn;
+        this.mlsd = mlsd;
+        this.path = path;
+        this.requested = requested;
+        this.cached = null;
+        // only absolute paths are cached, they stay right whatever the working directory
+        this.recorded = path != null && path.startsWith("/") ? new ArrayList<>() : null;
+    }
+
+    // A listing of path served from the session's cache
+    FtpListing(FtpSession session, List<FtpEntry> entries, String path){
+        this.session = session;
+        this.dataChannel = null;
+        this.dataIn = null;
+        this.mlsd = false;
+        this.path = path;
+        this.requested = 0;
+        this.cached = entries.iterator();
+    }
+
+    /**
+     * Reads the next entry, skipping lines that are not entries. At the end of the listing the server's
+     * closing reply is read as well.
+     * @return the entry, or null once the listing has ended
+     * @throws IOException if the data or control connection fails or the listing does not end with 2xx
+     */
+    FtpEntry read() throws IOException {
+        if (cached != null) return cached.hasNext() ? cached.next() : null;
+        while (!ended) {
+            String line = dataIn.readLine();
+            if (line == null) {
+                ended = true;
+                close();
+                break;
+            }
+            if (session.firstByteAt == 0) session.firstByteAt = System.nanoTime();
+            bytes += line.length() + 2;
+            FtpEntry entry = mlsd ? FtpEntry.parseMlsd(line) : FtpEntry.parseList(line);
+            if (entry != null) {
+                if (recorded != null) {
+                    if (recorded.size() < FtpSession.CACHED_ENTRIES) recorded.add(entry);
+                    else recorded = null; // too large to keep, it stays a streamed listing
+                }
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the remaining entries as a stream. Closing the stream closes the listing, so it should be used
+     * with try-with-resources; failures while reading come out as UncheckedIOException.
+     */
+    Stream<FtpEntry> stream(){
+        Iterator<FtpEntry> entries = new Iterator<FtpEntry>() {
+            private FtpEntry next;
+
+            @Override
+            public boolean hasNext(){
+                try {
+                    if (next == null) next = read();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return next != null;
+            }
+
+            @Override
+            public FtpEntry next(){
+                if (!hasNext()) throw new NoSuchElementException();
+                FtpEntry entry = next;
+                next = null;
+                return entry;
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(entries,
+                Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> {
+                    try {
+                        close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    /**
+     * Ends the listing. When it was read to the end, the server's 226 (or other 2xx) is checked and the
+     * transfer reported; when it is closed early, the data connection is dropped and the server's 226 or 426
+     * is read so the control connection can be used again. Either way the reader is closed, which for a
+     * MODE Z listing also ends its Inflater. Only a listing read to the end is put in the cache.
+     * @throws IOException if the control connection fails or a complete listing does not end with 2xx
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        if (cached != null) return;
+        try {
+            dataChannel.close();
+            String fromServer = session.readResponse();
+            if (!ended) return; // abandoned, whatever the server says about it
+            FtpSession.expectCompletion(fromServer);
+            session.transferred("dir", path == null ? "." : path, bytes, requested);
+            if (recorded != null) session.listings.put(path, recorded);
+        } finally {
+            dataIn.close();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+//
+// Receives timings and counters from FtpSession and the client. Implementations
+// must be thread safe since pooled sessions report from worker threads.
+// MetricsRegistry keeps totals for dumping, JfrMetrics turns them into JDK
+// Flight Recorder events.
+//
+
+
+public interface FtpMetrics
+{
+    /**
+     * A command got its first reply.
+     * @param command the command verb, e.g. "PASV", never its arguments
+     * @param code    the reply code
+     * @param nanos   time from sending the command to reading the reply
+     */
+    void command(String command, int code, long nanos);
+
+    /**
+     * A data connection was opened.
+     * @param nanos time taken by the TCP connect
+     */
+    void dataConnect(long nanos);
+
+    /**
+     * A transfer on a data connection finished.
+     * @param kind           "get", "put" or "dir"
+     * @param path           remote path transferred
+     * @param bytes          bytes moved
+     * @param firstByteNanos time from sending the transfer command to the first data byte, -1 if none arrived
+     * @param totalNanos     time from sending the transfer command to the end of the data
+     */
+    void transfer(String kind, String path, long bytes, long firstByteNanos, long totalNanos);
+
+    /**
+     * The socket settings a finished transfer ran with.
+     * @param kind          "get", "put" or "dir"
+     * @param receiveBuffer SO_RCVBUF of the data connection as the OS reports it
+     * @param sendBuffer    SO_SNDBUF of the data connection as the OS reports it
+     * @param chunkSize     read size the transfer ended with, 0 if it did not read through a buffer
+     */
+    void socketTuning(String kind, int receiveBuffer, int sendBuffer, int chunkSize);
+
+    /**
+     * An operation failed.
+     * @param code the client error code, e.g. "0x3A7"
+     */
+    void error(String code);
+
+    /**
+     * An operation is being tried again, e.g. a download resumed with REST.
+     */
+    void retry(String kind);
+
+    // Reports nothing
+    FtpMetrics NONE = of();
+
+    /**
+     * Returns metrics that pass every report on to all of the given ones.
+     */
+    static FtpMetrics of(FtpMetrics... sinks){
+        return new FtpMetrics() {
+            @Override
+            public void command(String command, int code, long nanos){
+                for (FtpMetrics sink : sinks) sink.command(command, code, nanos);
+            }
+
+            @Override
+            public void dataConnect(long nanos){
+                for (FtpMetrics sink : sinks) sink.dataConnect(nanos);
+            }
+
+            @Override
+            public void transfer(String kind, String path, long bytes, long firstByteNanos, long totalNanos){
+                for (FtpMetrics sink : sinks) sink.transfer(kind, path, bytes, firstByteNanos, totalNanos);
+            }
+
+            @Override
+            public void socketTuning(String kind, int receiveBuffer, int sendBuffer, int chunkSize){
+                for (FtpMetrics sink : sinks) sink.socketTuning(kind, receiveBuffer, sendBuffer, chunkSize);
+            }
+
+            @Override
+            public void error(String code){
+                for (FtpMetrics sink : sinks) sink.error(code);
+            }
+
+            @Override
+            public void retry(String kind){
+                for (FtpMetrics sink : sinks) sink.retry(kind);
+            }
+        };
+    }
+}
@@ -0,0 +1,200 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+//
+// A complete reply on the control connection: the three digit code and every
+// line of text, read straight from the socket's bytes. Multi-line replies
+// follow RFC 959: the first line is "xyz-" and the reply ends at the first
+// line that starts with the same code followed by a space.
+//
+
+
+public class FtpReply
+{
+    final int code;
+    final List<String> lines;
+
+    FtpReply(int code, List<String> lines){
+        this.code = code;
+        this.lines = lines;
+    }
+
+    // Returns the last line of the reply, which is the whole reply for single-line ones
+    String last(){
+        return lines.get(lines.size() - 1);
+    }
+
+    @Override
+    public String toString(){
+        return last();
+    }
+
+    /**
+     * Reads replies from a control connection. Bytes are read from the socket in chunks into the reader's own
+     * buffer and lines are cut out of it directly, so the only allocations per line are the String itself
+     * and, for multi-line replies, the list holding them.
+     */
+    static class Reader implements Closeable {
+        private final InputStream in;
+        private byte[] buffer = new byte[8192];
+        private int position;   // next unread byte in buffer
+        private int limit;      // end of the bytes read into buffer
+
+        Reader(InputStream in){
+            this.in = in;
+        }
+
+        /**
+         * Reads one line, without its CRLF (a bare LF is accepted too).
+         * @return the line, or null at the end of the stream
+         * @throws IOException if the connection fails
+         */
+        String readLine() throws IOException {
+            int start = position;
+            while (true) {
+                for (int i = position; i < limit; i++) {
+                    if (buffer[i] == '\n') {
+                        position = i + 1;
+                        int end = i > start && buffer[i - 1] == '\r' ? i - 1 : i;
+                        return new String(buffer, start, end - start, StandardCharsets.UTF_8);
+                    }
+                }
+                position = limit;
+                // no line end yet: keep the partial line at the front of the buffer and read more
+                int partial = limit - start;
+                if (partial == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                else System.arraycopy(buffer, start, buffer, 0, partial);
+                start = 0;
+                position = partial;
+                limit = partial;
+                int read = in.read(buffer, limit, buffer.length - limit);
+                if (read == -1) {
+                    position = limit = 0;
+                    return partial == 0 ? null : new String(buffer, 0, partial, StandardCharsets.UTF_8);
+                }
+                limit += read;
+            }
+        }
+
+        /**
+         * Reads a complete reply, however many lines it has.
+         * @return the reply, or null if the stream ends before a reply starts
+         * @throws IOException if the connection fails, the stream ends inside a reply or a line has no code
+         */
+        FtpReply readReply() throws IOException {
+            String first = readLine();
+            if (first == null) return null;
+            int code = parseCode(first);
+            if (code < 0) throw new IOException("malformed reply: " + first);
+            if (first.length() < 4 || first.charAt(3) != '-') {
+                return new FtpReply(code, Collections.singletonList(first));
+            }
+
+            List<String> lines = new ArrayList<>();
+            lines.add(first);
+            String next;
+            do {
+                if ((next = readLine()) == null) throw new EOFException("reply " + code + " not terminated");
+                lines.add(next);
+            } while (!isLastLine(next, code));
+            return new FtpReply(code, lines);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    // Returns true if line ends a multi-line reply with the given code: the same code followed by a space
+    private static boolean isLastLine(String line, int code){
+        return parseCode(line) == code && (line.length() == 3 || line.charAt(3) == ' ');
+    }
+
+    /**
+     * Returns true if a line is a 2xx reply. Transfers and listings end with 226 on most servers, but RFC 959
+     * allows 250 as well.
+     */
+    static boolean isCompletion(String line){
+        int code = parseCode(line);
+        return code >= 200 && code < 300;
+    }
+
+    /**
+     * Returns the reply code at the start of a line.
+     * @return the code, or -1 if the line does not start with three digits
+     */
+    static int parseCode(String line){
+        if (line.length() < 3) return -1;
+        int code = 0;
+        for (int i = 0; i < 3; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            code = code * 10 + (c - '0');
+        }
+        return code;
+    }
+
+    /**
+     * Parses a 227 PASV reply. The six numbers h1,h2,h3,h4,p1,p2 are looked for anywhere after the code, as
+     * RFC 1123 recommends, so replies with or without parentheses and with text around them all work.
+     * @return the address the server offers, or null if the line is not a 227 with six numbers
+     */
+    static InetSocketAddress parsePassive(String line){
+        if (parseCode(line) != 227) return null;
+        int[] numbers = new int[6];
+        int found = 0;
+        int i = 3;
+        // skip to the first digit of the address
+        while (i < line.length() && (line.charAt(i) < '0' || line.charAt(i) > '9')) i++;
+        while (found < 6 && i < line.length()) {
+            int value = 0;
+            int digits = 0;
+            while (i < line.length() && line.charAt(i) >= '0' && line.charAt(i) <= '9') {
+                value = value * 10 + (line.charAt(i++) - '0');
+                if (++digits > 3) return null;
+            }
+            if (digits == 0 || value > 255) return null;
+            numbers[found++] = value;
+            if (found < 6) {
+                while (i < line.length() && line.charAt(i) == ' ') i++;
+                if (i >= line.length() || line.charAt(i) != ',') return null;
+                i++;
+                while (i < line.length() && line.charAt(i) == ' ') i++;
+            }
+        }
+        if (found < 6) return null;
+        String ip = numbers[0] + "." + numbers[1] + "." + numbers[2] + "." + numbers[3];
+        return InetSocketAddress.createUnresolved(ip, numbers[4] * 256 + numbers[5]);
+    }
+
+    /**
+     * Parses a 229 EPSV reply (RFC 2428), e.g. "229 Entering Extended Passive Mode (|||6446|)". The
+     * delimiter is whatever character follows the opening parenthesis.
+     * @return the port the server offers, or -1 if the line is not a well-formed 229
+     */
+    static int parseExtendedPassive(String line){
+        if (parseCode(line) != 229) return -1;
+        int open = line.indexOf('(', 3);
+        if (open < 0 || open + 5 > line.length()) return -1;
+        char delimiter = line.charAt(open + 1);
+        int i = open + 1;
+        // three delimiters, then the port, then a closing delimiter
+        for (int seen = 0; seen < 3; seen++, i++) {
+            if (i >= line.length() || line.charAt(i) != delimiter) return -1;
+        }
+        int port = 0;
+        int digits = 0;
+        while (i < line.length() && line.charAt(i) >= '0' && line.charAt(i) <= '9') {
+            port = port * 10 + (line.charAt(i++) - '0');
+            if (++digits > 5) return -1;
+        }
+        if (digits == 0 || port > 65535 || i >= line.length() || line.charAt(i) != delimiter) return -1;
+        return port;
+    }
+}
@@ -0,0 +1,847 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.InflaterInputStream;
+
+//
+// A single authenticated control connection to an ftp server. The interactive
+// client keeps one of these, and FtpSessionPool hands out more of them to
+// transfers that need their own connection.
+//
+
+
+public class FtpSession implements Closeable
+{
+    static final int CONNECT_TIMEOUT = 20000;
+    static final int DATA_CONNECT_TIMEOUT = 10000;
+    static final int CACHED_DIRECTORIES = 256;
+    static final long LISTING_TTL = 60000;
+    static final int CACHED_ENTRIES = 10000;   // larger listings are streamed but not cached
+
+    final String host;
+    final int port;
+    String user;
+    String password;
+
+    // resources
+    Socket socket = new Socket();
+    PrintWriter out;
+    FtpReply.Reader in;
+
+    // whether TYPE I has been accepted on this connection
+    boolean binary;
+
+    // whether MODE Z has been accepted on this connection, so data arrives as a zlib stream
+    boolean compressed;
+
+    // Settings the user changes with commands. They belong to one session, so scripts running side by side
+    // do not change each other's; the engine copies them onto the pooled sessions that work for this one.
+
+    // whether transfers use MODE Z when the server offers it; the compress command sets this
+    volatile boolean compression;
+
+    // how lost connections and transient failures are retried; the retry command replaces it
+    volatile RetryPolicy retry;
+
+    // socket settings; the tune command replaces them
+    volatile SocketTuning tuning;
+
+    // whether the client checks downloads against a checksum; the verify command sets this
+    volatile boolean verify;
+
+    // whether independent commands may be sent together before reading their replies
+    volatile boolean pipelining;
+
+    // the last response read
+    FtpReply lastReply;
+
+    // FEAT results, fetched the first time they are needed
+    private Set<String> features;
+
+    // working directory from PWD, null until asked for or after a CWD
+    private String directory;
+
+    // the CWDs that lead from the login directory to the working directory, replayed after a reconnect
+    private final List<String> directoryChanges = new ArrayList<>();
+
+    // the checksum command this server answers, "" when it has none, null until checksum is first used
+    private String checksumCommand;
+
+    // listings of directories seen on this connection
+    final DirectoryCache listings = new DirectoryCache(CACHED_DIRECTORIES, LISTING_TTL);
+
+    // where timings and counters are reported; sessions pick up the default when created
+    static volatile FtpMetrics defaultMetrics = FtpMetrics.NONE;
+    FtpMetrics metrics = defaultMetrics;
+
+    // commands sent and not answered yet, oldest first, with the time they were sent
+    private final ArrayDeque<String> pendingCommands = new ArrayDeque<>();
+    private final ArrayDeque<Long> pendingSince = new ArrayDeque<>();
+
+    // when the first data byte of the last transfer arrived, 0 if none did
+    long firstByteAt;
+
+    // bytes the last retrieve wrote, also when it failed, so the rest can be fetched with REST
+    long partialBytes;
+
+    // shares bandwidth between the transfers of all sessions; the throttle command sets its limits, which
+    // are process-wide on purpose: a global rate has to hold for every transfer together
+    static final BandwidthScheduler bandwidth = new BandwidthScheduler();
+    // the class this session's transfers are weighted as, e.g. BandwidthScheduler.BULK
+    volatile String trafficClass = BandwidthScheduler.INTERACTIVE;
+
+    // "PASV" for servers that refused EPSV, keyed by host:port, so later data connections skip the failed try
+    private static final Map<String, String> passiveModes = new ConcurrentHashMap<>();
+
+    // shortest command round trip and latest large transfer throughput seen per host, for sizing buffers
+    private static final Map<String, Long> roundTrips = new ConcurrentHashMap<>();
+    private static final Map<String, Long> throughputs = new ConcurrentHashMap<>();
+    // transfers smaller than this finish before TCP gets up to speed and say little about the link
+    static final long MEASURED_TRANSFER = 1024 * 1024;
+
+    // what the last data connection and transfer used, for the transfer metrics
+    private int dataReceiveBuffer;
+    private int dataSendBuffer;
+    private int lastChunk;
+
+    // when the session was last handed back to a pool or used for a command
+    volatile long lastUsed = System.currentTimeMillis();
+
+    // when the session was last handed back to a pool by a caller; keep-alive NOOPs leave it alone
+    volatile long idleSince = System.currentTimeMillis();
+
+    FtpSession(String host, int port){
+        this.host = host;
+        this.port = port;
+        resetSettings();
+    }
+
+    /**
+     * Puts the settings the user can change back to their defaults, e.g. before the next script of a batch
+     * runs on this connection.
+     */
+    void resetSettings(){
+        compression = true;
+        retry = new RetryPolicy();
+        tuning = new SocketTuning();
+        verify = true;
+        pipelining = false;
+    }
+
+    /**
+     * Opens the control connection. The greeting is left unread so the caller can handle it.
+     * @throws IOException if the server cannot be reached
+     */
+    void connect() throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(tuning.noDelay);
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+        in = new FtpReply.Reader(socket.getInputStream());
+        out = new PrintWriter(socket.getOutputStream());
+        // anything still waiting for a reply was sent on an earlier connection
+        pendingCommands.clear();
+        pendingSince.clear();
+    }
+
+    /**
+     * Opens the control connection, reads the greeting and logs in with USER and PASS.
+     * A null user leaves the session unauthenticated.
+     * @throws IOException if the connection or the login fails
+     */
+    void open(String user, String password) throws IOException {
+        connect();
+        expect(readResponse(), "220");
+        if (user != null && pipelining && password != null) {
+            // a server that needs no password answers PASS with 503, which is harmless after a 230
+            String[] replies = commands("USER " + user, "PASS " + password);
+            if (!replies[0].startsWith("230")) expect(replies[1], "230");
+        } else if (user != null) {
+            String fromServer = command("USER " + user);
+            if (fromServer.startsWith("331")) fromServer = command("PASS " + password);
+            expect(fromServer, "230");
+        }
+        this.user = user;
+        this.password = password;
+    }
+
+    /**
+     * Opens a new control connection after this one was lost and brings it back to where the old one was:
+     * logged in as the same user, in the same working directory and in binary mode if it was. Each try is
+     * preceded by the retry policy's backoff. If the server refuses one of the directory changes on the way
+     * back, the session stays logged in at the last directory that worked.
+     * @return null once everything is restored, or the server's refusal of the directory change it stopped at
+     * @throws IOException from the last try if none of them worked
+     */
+    String reconnect() throws IOException {
+        RetryPolicy retry = this.retry;
+        boolean wasBinary = binary;
+        List<String> path = new ArrayList<>(directoryChanges);
+        for (int attempt = 1; ; attempt++) {
+            close();
+            retry.pause(attempt);
+            metrics.retry("reconnect");
+            try {
+                open(user, password);
+                binary = false;
+                compressed = false; // a new connection starts in MODE S
+                directory = null;
+                directoryChanges.clear();
+                String refused = null;
+                for (String change : path) {
+                    String fromServer = cd(change);
+                    if (!fromServer.startsWith("250")) {
+                        refused = fromServer;
+                        break;
+                    }
+                }
+                if (wasBinary) {
+                    expect(command("TYPE I"), "200");
+                    binary = true;
+                }
+                return refused;
+            } catch (IOException e) {
+                if (!retry.retries(e, attempt)) throw e;
+            }
+        }
+    }
+
+    /**
+     * Sends one command and reads its response without printing either.
+     * @return the last line of the response
+     * @throws IOException if the control connection fails
+     */
+    String command(String command) throws IOException {
+        send(command);
+        return readResponse();
+    }
+
+    /**
+     * Sends one command without waiting for its reply. The reply has to be read with readResponse or
+     * readReply, which also reports how long it took.
+     */
+    void send(String command){
+        queue(command);
+        out.flush();
+    }
+
+    // Writes a command to the control connection buffer without flushing it
+    private void queue(String command){
+        out.print(command + "\r\n");
+        int space = command.indexOf(' ');
+        // only the verb is reported, never arguments such as the password
+        pendingCommands.add(space < 0 ? command : command.substring(0, space));
+        pendingSince.add(System.nanoTime());
+    }
+
+    /**
+     * Sends several commands and returns the last line of each response, in order. When pipelining is on the
+     * commands go out in a single flush and the replies are read afterwards, saving a round trip per command;
+     * otherwise each command waits for its reply. Only commands whose outcome does not change the meaning of
+     * the ones after them (TYPE, SIZE, MDTM, PASV, USER/PASS) should be sent this way.
+     * @throws IOException if the control connection fails
+     */
+    String[] commands(String... commands) throws IOException {
+        String[] responses = new String[commands.length];
+        if (!pipelining) {
+            for (int i = 0; i < commands.length; i++) responses[i] = command(commands[i]);
+            return responses;
+        }
+        for (String command : commands) queue(command);
+        out.flush();
+        for (int i = 0; i < commands.length; i++) responses[i] = readResponse();
+        return responses;
+    }
+
+    /**
+     * Reads a complete, possibly multi-line, response without printing it.
+     * @return the last line of the response
+     * @throws IOException if the connection fails or closes before the response ends
+     */
+    String readResponse() throws IOException {
+        return readReply().last();
+    }
+
+    /**
+     * Reads a complete, possibly multi-line, reply without printing it.
+     * @return the reply
+     * @throws IOException if the connection fails or closes before the reply ends
+     */
+    FtpReply readReply() throws IOException {
+        FtpReply reply = in.readReply();
+        if (reply == null) throw new EOFException();
+        lastReply = reply;
+        // the first reply to each command times it; later ones, such as a 226 after a 150, belong to no command
+        if (!pendingCommands.isEmpty()) {
+            long elapsed = System.nanoTime() - pendingSince.poll();
+            metrics.command(pendingCommands.poll(), reply.code, elapsed);
+            roundTrips.merge(host, elapsed, Math::min);
+        }
+        lastUsed = System.currentTimeMillis();
+        return reply;
+    }
+
+    /**
+     * Sends a file query command such as SIZE or MDTM.
+     * @return the value of a 213 reply, or null if the server refused the command
+     * @throws IOException if the control connection fails
+     */
+    String query(String command, String fileName) throws IOException {
+        return parseValue(command(command + " " + fileName));
+    }
+
+    /**
+     * Asks the server for a checksum of a file: HASH when FEAT lists it, otherwise XCRC and then XMD5, which
+     * servers support without listing them. A command the server refused is not tried again on this session.
+     * @return the algorithm and the hex digest, e.g. "SHA-256:9f86d0...", "CRC32:1C291CA3" or "MD5:...",
+     *         or null if the server has no checksum command
+     * @throws IOException if the control connection fails
+     */
+    String checksum(String fileName) throws IOException {
+        if (checksumCommand == null) checksumCommand = hasFeature("HASH") ? "HASH" : "XCRC";
+        while (!checksumCommand.isEmpty()) {
+            String fromServer = command(checksumCommand + " " + fileName);
+            if (fromServer.startsWith("213") && checksumCommand.equals("HASH")) {
+                // 213 <algorithm> <range> <hash> <file>
+                String[] reply = fromServer.split(" ", 5);
+                return reply.length >= 4 ? reply[1] + ":" + reply[3] : null;
+            }
+            if (fromServer.startsWith("250") && fromServer.length() > 4) {
+                String digest = fromServer.substring(4).trim().split(" ")[0];
+                return (checksumCommand.equals("XCRC") ? "CRC32:" : "MD5:") + digest;
+            }
+            if (fromServer.startsWith("5") && !fromServer.startsWith("550")) {
+                // not implemented rather than no such file: fall back to the next command
+                checksumCommand = checksumCommand.equals("HASH") ? "XCRC"
+                        : checksumCommand.equals("XCRC") ? "XMD5" : "";
+            } else {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Asks for the checksum of length bytes of a file from offset, with RANG before HASH as the HASH draft
+     * describes. RANG is reset again afterwards so later HASH commands cover whole files.
+     * @return the algorithm and hex digest of the range, or null if the server cannot hash ranges
+     * @throws IOException if the control connection fails
+     */
+    String checksum(String fileName, long offset, long length) throws IOException {
+        if (!hasFeature("HASH") || !hasFeature("RANG") || length <= 0) return null;
+        if (!command("RANG " + offset + " " + (offset + length - 1)).startsWith("350")) return null;
+        try {
+            String fromServer = command("HASH " + fileName);
+            String[] reply = fromServer.split(" ", 5);
+            return fromServer.startsWith("213") && reply.length >= 4 ? reply[1] + ":" + reply[3] : null;
+        } finally {
+            command("RANG 1 0");
+        }
+    }
+
+    /**
+     * Returns true if FEAT lists a checksum command, HASH, XCRC or XMD5, that downloads can be verified with.
+     * @throws IOException if the control connection fails
+     */
+    boolean advertisesChecksum() throws IOException {
+        return hasFeature("HASH") || hasFeature("XCRC") || hasFeature("XMD5");
+    }
+
+    // Returns the value of a 213 reply to SIZE or MDTM, or null if the command was refused
+    static String parseValue(String fromServer){
+        if (fromServer == null || !fromServer.startsWith("213") || fromServer.length() < 5) return null;
+        return fromServer.substring(4).trim();
+    }
+
+    /**
+     * Throws unless the response is a 2xx reply, as a transfer or listing has to end with.
+     * @throws IOException carrying the unexpected response
+     */
+    static void expectCompletion(String fromServer) throws IOException {
+        if (fromServer == null || !FtpReply.isCompletion(fromServer)) throw new IOException(fromServer);
+    }
+
+    /**
+     * Throws unless the response starts with the expected code.
+     * @throws IOException carrying the unexpected response
+     */
+    static void expect(String fromServer, String code) throws IOException {
+        if (fromServer == null || !fromServer.startsWith(code)) throw new IOException(fromServer);
+    }
+
+    /**
+     * Sends a NOOP to check that the server still answers on this connection.
+     * @return true if the server replied 200
+     */
+    boolean noop(){
+        try {
+            return command("NOOP").startsWith("200");
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Sends EPSV, or PASV for a server known to refuse EPSV, and connects to the data port the server offers.
+     * @return the connected data channel
+     * @throws IOException if passive mode is refused or the data connection cannot be opened
+     */
+    SocketChannel openDataConnection() throws IOException {
+        String passive = passiveCommand();
+        return connectPassive(passive, command(passive));
+    }
+
+    /**
+     * Like openDataConnection, but first switches to binary if needed. With pipelining the TYPE I and EPSV
+     * go out together.
+     * @throws IOException if either command is refused or the data connection cannot be opened
+     */
+    SocketChannel openBinaryDataConnection() throws IOException {
+        if (binary) return openDataConnection();
+        String passive = passiveCommand();
+        String[] replies = commands("TYPE I", passive);
+        expect(replies[0], "200");
+        binary = true;
+        return connectPassive(passive, replies[1]);
+    }
+
+    /**
+     * @return the passive mode command to send: EPSV (RFC 2428) unless this server has refused it before
+     */
+    String passiveCommand(){
+        return passiveModes.getOrDefault(host + ":" + port, "EPSV");
+    }
+
+    /**
+     * Checks the reply to a passive mode command. When an EPSV was refused, PASV is tried instead; only a
+     * server that does not know EPSV (500, 501 or 502) is remembered as a PASV one, so its later data
+     * connections go straight to PASV. After a transient 4xx the next transfer tries EPSV again.
+     * @return true if the caller should send PASV instead
+     */
+    boolean passiveRefused(String passive, String fromServer){
+        if (!passive.equals("EPSV") || fromServer.startsWith("229")) return false;
+        // PASV only carries IPv4 addresses, so there is nothing to fall back to over IPv6
+        if (socket.getInetAddress() instanceof Inet6Address) return false;
+        int code = FtpReply.parseCode(fromServer);
+        if (code >= 500 && code <= 502) passiveModes.put(host + ":" + port, "PASV");
+        metrics.retry("pasv");
+        return true;
+    }
+
+    /**
+     * Connects to the data port offered in the reply to a passive mode command, sending PASV first if the
+     * server refused EPSV.
+     * @return the connected data channel
+     * @throws IOException if passive mode is refused or the data connection cannot be opened
+     */
+    SocketChannel connectPassive(String passive, String fromServer) throws IOException {
+        if (passiveRefused(passive, fromServer)) fromServer = command("PASV");
+        return connectData(passiveAddress(fromServer));
+    }
+
+    /**
+     * Returns the data address offered in a PASV (227) or EPSV (229) response. EPSV names only a port, which
+     * is on the host the control connection is connected to. The address in a PASV response is used only when
+     * it is reachable from here; a private, loopback or wildcard one that differs from the control connection's
+     * peer is a server behind NAT reporting its inside address, and the peer is used instead.
+     * @throws IOException if the response offers no address
+     */
+    InetSocketAddress passiveAddress(String fromServer) throws IOException {
+        InetAddress peer = socket.getInetAddress();
+        int extendedPort = FtpReply.parseExtendedPassive(fromServer);
+        if (extendedPort >= 0) return InetSocketAddress.createUnresolved(peer.getHostAddress(), extendedPort);
+        InetSocketAddress address = FtpReply.parsePassive(fromServer);
+        if (address == null) throw new IOException("passive mode refused: " + fromServer);
+        InetAddress offered = InetAddress.getByName(address.getHostString()); // a literal, so no lookup
+        if (!offered.equals(peer) && (offered.isSiteLocalAddress() || offered.isLoopbackAddress()
+                || offered.isAnyLocalAddress() || offered.isLinkLocalAddress())) {
+            return InetSocketAddress.createUnresolved(peer.getHostAddress(), address.getPort());
+        }
+        return address;
+    }
+
+    /**
+     * Opens a blocking data connection channel to the given passive mode address and reports how long the
+     * connect took.
+     * @return the connected channel
+     * @throws IOException if the connection cannot be opened
+     */
+    SocketChannel connectData(InetSocketAddress address) throws IOException {
+        SocketChannel dataChannel = SocketChannel.open();
+        try {
+            Socket dataSocket = dataChannel.socket();
+            // buffers have to be set before connecting so TCP can offer a large enough window
+            SocketTuning tuning = this.tuning;
+            long rtt = roundTrips.getOrDefault(host, 0L);
+            long throughput = throughputs.getOrDefault(host, 0L);
+            int receiveBuffer = tuning.socketBuffer(tuning.receiveBuffer, dataSocket.getReceiveBufferSize(), rtt, throughput);
+            if (receiveBuffer > 0) dataSocket.setReceiveBufferSize(receiveBuffer);
+            int sendBuffer = tuning.socketBuffer(tuning.sendBuffer, dataSocket.getSendBufferSize(), rtt, throughput);
+            if (sendBuffer > 0) dataSocket.setSendBufferSize(sendBuffer);
+
+            long started = System.nanoTime();
+            dataSocket.connect(new InetSocketAddress(address.getHostString(), address.getPort()), DATA_CONNECT_TIMEOUT);
+            metrics.dataConnect(System.nanoTime() - started);
+            dataReceiveBuffer = dataSocket.getReceiveBufferSize();
+            dataSendBuffer = dataSocket.getSendBufferSize();
+        } catch (IOException e) {
+            dataChannel.close();
+            throw e;
+        }
+        return dataChannel;
+    }
+
+    /**
+     * Reports a finished transfer whose command was sent at requested, using firstByteAt for the time to
+     * first byte.
+     */
+    void transferred(String kind, String path, long bytes, long requested){
+        long now = System.nanoTime();
+        metrics.transfer(kind, path, bytes, firstByteAt == 0 ? -1 : firstByteAt - requested, now - requested);
+        metrics.socketTuning(kind, dataReceiveBuffer, dataSendBuffer, kind.equals("get") ? lastChunk : 0);
+        if (bytes >= MEASURED_TRANSFER && firstByteAt != 0 && now > firstByteAt) {
+            throughputs.put(host, (long) (bytes / ((now - firstByteAt) / 1e9)));
+        }
+    }
+
+    /**
+     * Returns true if the server lists feature in its FEAT response, e.g. "MLST" or "MDTM".
+     * FEAT is only sent the first time.
+     * @throws IOException if the control connection fails
+     */
+    boolean hasFeature(String feature) throws IOException {
+        if (features == null) {
+            features = new HashSet<>();
+            if (command("FEAT").startsWith("211")) {
+                // the first and last lines are the 211 framing, each feature is on its own line in between
+                for (int i = 1; i < lastReply.lines.size() - 1; i++) {
+                    String line = lastReply.lines.get(i).trim().toUpperCase(Locale.ROOT);
+                    int space = line.indexOf(' ');
+                    features.add(space < 0 ? line : line.substring(0, space));
+                    features.add(line); // so features with a parameter can be asked for whole, e.g. "MODE Z"
+                }
+            }
+        }
+        return features.contains(feature);
+    }
+
+    /**
+     * Switches the connection to MODE Z when compress is set, compression is on and the server lists MODE Z in
+     * FEAT, and back to MODE S otherwise. MODE is only sent when it changes; a refused MODE Z leaves the
+     * connection in MODE S.
+     * @return the MODE command that was sent, or null if the mode was already right
+     * @throws IOException if the control connection fails
+     */
+    String transferMode(boolean compress) throws IOException {
+        boolean wanted = compress && compression && hasFeature("MODE Z");
+        if (wanted == compressed) return null;
+        String mode = wanted ? "MODE Z" : "MODE S";
+        boolean accepted = command(mode).startsWith("200");
+        if (wanted && !accepted) features.remove("MODE Z"); // so it is not asked for again
+        compressed = wanted == accepted;
+        return mode;
+    }
+
+    /**
+     * @return the data connection as it should be read: inflated when MODE Z is in effect
+     */
+    ReadableByteChannel dataInput(SocketChannel dataChannel){
+        return compressed ? new InflatingChannel(dataChannel) : dataChannel;
+    }
+
+    /**
+     * Returns the working directory, sending PWD only when it is not already known.
+     * @return the directory, or null if the server did not report one
+     * @throws IOException if the control connection fails
+     */
+    String pwd() throws IOException {
+        if (directory == null) {
+            directory = parseDirectory(command("PWD"));
+            if (directory != null) {
+                // one absolute CWD is all a reconnect needs to get back here
+                directoryChanges.clear();
+                directoryChanges.add(directory);
+            }
+        }
+        return directory;
+    }
+
+    /**
+     * Changes the working directory with CWD. Cached listings are kept, they are stored by absolute path.
+     * @return the server's response
+     * @throws IOException if the control connection fails
+     */
+    String cd(String path) throws IOException {
+        String fromServer = command("CWD " + path);
+        if (fromServer.startsWith("250")) changedDirectory(path);
+        return fromServer;
+    }
+
+    /**
+     * Records a successful directory change made on this connection, whether through cd or by the
+     * interactive client.
+     * @param path the argument the CWD was sent with
+     */
+    void changedDirectory(String path){
+        boolean absolute = path.startsWith("/");
+        directory = absolute ? path : null;
+        if (absolute) directoryChanges.clear();
+        directoryChanges.add(path);
+    }
+
+    // Returns the directory in a 257 PWD response, or null if there is none
+    static String parseDirectory(String fromServer){
+        if (fromServer == null || !fromServer.startsWith("257")) return null;
+        int open = fromServer.indexOf('"');
+        int close = fromServer.lastIndexOf('"');
+        if (open < 0 || close <= open) return null;
+        return fromServer.substring(open + 1, close).replace("\"\"", "\"");
+    }
+
+    /**
+     * Lists a directory, from the cache when it was listed recently. MLSD is used when FEAT advertises MLST,
+     * otherwise LIST output is parsed.
+     * @param path directory to list, or null for the working directory (only absolute paths are cached)
+     * @return the files and directories in it
+     * @throws IOException if the control or data connection fails or the server refuses the listing
+     */
+    List<FtpEntry> list(String path) throws IOException {
+        List<FtpEntry> entries = path == null ? null : listings.get(path);
+        if (entries != null) return entries;
+
+        entries = new ArrayList<>();
+        try (FtpListing listing = listing(path)) {
+            FtpEntry entry;
+            while ((entry = listing.read()) != null) entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Starts listing a directory with MLSD or LIST and returns as soon as the server has accepted the
+     * command, so the entries can be read while they arrive. A directory listed recently is served from the
+     * cache instead, and a complete listing of an absolute path is cached unless it has more than
+     * CACHED_ENTRIES entries. The listing has to be read to the end or closed before this session is used
+     * for anything else.
+     * @param path directory to list, or null for the working directory
+     * @throws IOException if the control or data connection fails or the server refuses the listing
+     */
+    FtpListing listing(String path) throws IOException {
+        List<FtpEntry> cached = path == null ? null : listings.get(path);
+        if (cached != null) return new FtpListing(this, cached, path);
+        boolean mlsd = hasFeature("MLST");
+        String command = (mlsd ? "MLSD" : "LIST") + (path == null ? "" : " " + path);
+        firstByteAt = 0;
+        transferMode(true);
+        SocketChannel dataChannel = openDataConnection();
+        try {
+            long requested = System.nanoTime();
+            String fromServer = command(command);
+            if (!fromServer.startsWith("125") && !fromServer.startsWith("150")) throw new IOException(fromServer);
+            InputStream listing = dataChannel.socket().getInputStream();
+            if (compressed) listing = new InflaterInputStream(listing);
+            BufferedReader dataIn = new BufferedReader(new InputStreamReader(listing));
+            return new FtpListing(this, dataChannel, dataIn, mlsd, path, requested);
+        } catch (IOException e) {
+            dataChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Lists a directory as a stream of entries parsed while they arrive, for directories too large to hold
+     * or wait for. The stream has to be closed, which also ends the listing if it was not read to the end.
+     * @param path directory to list, or null for the working directory
+     * @throws IOException if the control or data connection fails or the server refuses the listing
+     */
+    Stream<FtpEntry> stream(String path) throws IOException {
+        return listing(path).stream();
+    }
+
+    /**
+     * Retrieves a file in binary, or limit bytes of it, from offset onwards and writes it at the same offset
+     * in out. REST is sent right before RETR, after PASV, as RFC 959 asks. When the transfer stops at limit
+     * the data connection is closed early and the server's 226 or 426 reply is accepted either way.
+     * @param limit    number of bytes to fetch, or a negative number for the rest of the file
+     * @param progress counter for bytes written, may be null
+     * @return the number of bytes written
+     * @throws IOException if the control or data connection fails or the server refuses the file
+     */
+    long retrieve(String fileName, long offset, long limit, FileChannel out, ByteBuffer buffer, AtomicLong progress)
+            throws IOException {
+        return retrieve(fileName, offset, limit, out, buffer, progress, null);
+    }
+
+    /**
+     * Retrieves a file or a range of it like retrieve above, adding every byte written to checksum as well.
+     * @param checksum checksum of the bytes received, may be null
+     */
+    long retrieve(String fileName, long offset, long limit, FileChannel out, ByteBuffer buffer, AtomicLong progress,
+                  TransferChecksum checksum) throws IOException {
+        long received;
+        long requested;
+        partialBytes = 0;
+        // REST offsets and early closes are only well defined on the uncompressed stream
+        transferMode(offset == 0 && limit < 0);
+        try (SocketChannel dataChannel = openBinaryDataConnection();
+             ReadableByteChannel dataIn = dataInput(dataChannel)) {
+            if (offset > 0) expect(command("REST " + offset), "350");
+            requested = System.nanoTime();
+            String fromServer = command("RETR " + fileName);
+            if (!fromServer.startsWith("125") && !fromServer.startsWith("150")) throw new IOException(fromServer);
+            received = transfer(dataIn, out, offset, limit, buffer, progress, checksum);
+        }
+        String fromServer = readResponse();
+        if (limit >= 0 && received < limit) throw new EOFException(fileName + " ended after " + received + " bytes");
+        if (limit < 0 && !FtpReply.isCompletion(fromServer)) throw new IOException(fromServer);
+        transferred("get", fileName, received, requested);
+        return received;
+    }
+
+    /**
+     * Uploads a local file with STOR, or with APPE to add it to the end of the remote file. The body goes
+     * from the file channel straight to the data socket channel with transferTo, so the kernel can send it
+     * with sendfile instead of copying it through the heap.
+     * @return the number of bytes sent
+     * @throws FileNotFoundException if the local file cannot be read
+     * @throws IOException if the control or data connection fails or the server refuses the file
+     */
+    long store(File localFile, String remoteName, boolean append) throws IOException {
+        if (!localFile.isFile() || !localFile.canRead()) throw new FileNotFoundException(localFile.getPath());
+        long sent = 0;
+        long requested;
+        transferMode(false); // uploads go through transferTo, which cannot deflate
+        try (FileChannel fileIn = FileChannel.open(localFile.toPath(), StandardOpenOption.READ);
+             SocketChannel dataChannel = openBinaryDataConnection()) {
+            requested = System.nanoTime();
+            String fromServer = command((append ? "APPE " : "STOR ") + remoteName);
+            if (!fromServer.startsWith("125") && !fromServer.startsWith("150")) throw new IOException(fromServer);
+            long size = fileIn.size();
+            firstByteAt = System.nanoTime(); // for uploads, when the first byte goes out
+            try (BandwidthScheduler.Flow flow = bandwidth.open(trafficClass)) {
+                while (sent < size) {
+                    long count = fileIn.transferTo(sent, Math.min(size - sent, flow.burst()), dataChannel);
+                    sent += count;
+                    flow.take(count);
+                }
+            }
+        }
+        // closing the data connection marks the end of the file
+        expectCompletion(readResponse());
+        transferred("put", remoteName, sent, requested);
+        uploaded(remoteName);
+        return sent;
+    }
+
+    // Drops the cached listing of the directory a file was uploaded into
+    private void uploaded(String remoteName){
+        int slash = remoteName.lastIndexOf('/');
+        String parent = slash < 0 ? directory : slash == 0 ? "/" : remoteName.substring(0, slash);
+        if (parent == null || !parent.startsWith("/")) listings.clear(); // not sure which one, drop them all
+        else listings.invalidate(parent);
+    }
+
+    /**
+     * Copies up to limit bytes (or everything when limit is negative) from the data connection into the file
+     * starting at position, using the given buffer. Bytes written are also added to progress if it is not null.
+     * The arrival of the first byte is kept in firstByteAt. Reads start at the tuning's first chunk size and
+     * adapt to how much data is waiting each time, and are held back to this session's share of the
+     * bandwidth. From an InflatingChannel, the compressed bytes are what count against the bandwidth.
+     * @return the number of bytes written to the file
+     */
+    long transfer(ReadableByteChannel in, FileChannel out, long position, long limit,
+                  ByteBuffer buffer, AtomicLong progress) throws IOException {
+        return transfer(in, out, position, limit, buffer, progress, null);
+    }
+
+    /**
+     * Copies from the data connection into the file like transfer above, adding the bytes to checksum on the
+     * way so they never have to be read back from the file.
+     * @param checksum checksum of the bytes written, may be null
+     */
+    long transfer(ReadableByteChannel in, FileChannel out, long position, long limit,
+                  ByteBuffer buffer, AtomicLong progress, TransferChecksum checksum) throws IOException {
+        long total = 0;
+        firstByteAt = 0;
+        SocketTuning tuning = this.tuning;
+        int chunk = tuning.firstChunk(buffer.capacity());
+        InflatingChannel inflating = in instanceof InflatingChannel ? (InflatingChannel) in : null;
+        long taken = 0;
+        buffer.clear();
+        try (BandwidthScheduler.Flow flow = bandwidth.open(trafficClass)) {
+            while (limit < 0 || total < limit) {
+                // a throttled read takes no more than one burst, so the rate is kept in small steps
+                int room = Math.min(chunk, flow.burst());
+                buffer.limit((int) (limit >= 0 ? Math.min(room, limit - total) : room));
+                int read = in.read(buffer);
+                if (read == -1) break;
+                if (firstByteAt == 0) firstByteAt = System.nanoTime();
+                // a read that filled a throttled room counts as full, the throttle is what held it back
+                chunk = tuning.nextChunk(chunk, read == room ? chunk : read, buffer.capacity());
+                buffer.flip();
+                if (checksum != null) checksum.update(buffer);
+                while (buffer.hasRemaining()) {
+                    int written = out.write(buffer, position + total);
+                    total += written;
+                    partialBytes = total;
+                    if (progress != null) progress.addAndGet(written);
+                }
+                buffer.clear();
+                long moved = inflating == null ? read : inflating.bytesIn() - taken;
+                taken += moved;
+                flow.take(moved);
+            }
+        }
+        lastChunk = chunk;
+        return total;
+    }
+
+    /**
+     * Parses the time in an MDTM reply (YYYYMMDDHHMMSS, optionally with fractions, always UTC).
+     * @return milliseconds since the epoch, or -1 if the value cannot be parsed
+     */
+    static long parseModified(String modified){
+        if (modified == null || modified.length() < 14) return -1;
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        try {
+            return format.parse(modified.substring(0, 14)).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    // Returns true while the control socket is open
+    boolean isConnected(){
+        return socket.isConnected() && !socket.isClosed();
+    }
+
+    /**
+     * Closes the control connection and its streams.
+     */
+    @Override
+    public void close(){
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+        if (out != null) out.close();
+    }
+}
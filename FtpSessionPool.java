@@ -0,0 +1,182 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+//
+// A bounded pool of authenticated FtpSessions keyed by host, port and user.
+// Checked in sessions stay logged in so the next transfer can skip the TCP
+// connect and USER/PASS round trips. Idle sessions are kept alive with NOOP
+// and closed once they have been idle for too long.
+//
+
+
+public class FtpSessionPool implements Closeable
+{
+    private final int maxPerKey;
+    private final long keepAliveMillis;
+    private final long maxIdleMillis;
+
+    private final Map<String, Deque<FtpSession>> idle = new HashMap<>();
+    private final Map<String, Integer> open = new HashMap<>();
+    private final ScheduledExecutorService maintenance;
+    private boolean closed;
+
+    /**
+     * @param maxPerKey       most sessions open at once for one host/port/user
+     * @param keepAliveMillis idle time after which a session is checked with NOOP
+     * @param maxIdleMillis   idle time after which a session is closed
+     */
+    FtpSessionPool(int maxPerKey, long keepAliveMillis, long maxIdleMillis){
+        this.maxPerKey = maxPerKey;
+        this.keepAliveMillis = keepAliveMillis;
+        this.maxIdleMillis = maxIdleMillis;
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ftp-session-pool");
+            thread.setDaemon(true);
+            return thread;
+        });
+        maintenance.scheduleWithFixedDelay(this::maintain, keepAliveMillis, keepAliveMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Returns the pool key of a session
+    private static String key(String host, int port, String user){
+        return host + ":" + port + ":" + user;
+    }
+
+    /**
+     * Returns a logged in session for host/port/user, reusing an idle one when possible. Sessions that have
+     * been idle longer than the keep-alive interval are checked with NOOP first. Blocks while all sessions
+     * for the key are checked out.
+     * @param pipelining whether the session, and the login of a new one, may pipeline commands
+     * @throws IOException if a new session cannot be opened
+     * @throws InterruptedException if interrupted while waiting for a session
+     */
+    FtpSession checkout(String host, int port, String user, String password, boolean pipelining)
+            throws IOException, InterruptedException {
+        String key = key(host, port, user);
+        while (true) {
+            FtpSession session = null;
+            synchronized (this) {
+                if (closed) throw new IOException("session pool closed");
+                Deque<FtpSession> sessions = idle.get(key);
+                if (sessions != null && !sessions.isEmpty()) {
+                    session = sessions.pollFirst();
+                } else if (open.getOrDefault(key, 0) < maxPerKey) {
+                    open.merge(key, 1, Integer::sum);
+                } else {
+                    wait();
+                    continue;
+                }
+            }
+
+            if (session == null) { // a slot was reserved for a new session
+                session = new FtpSession(host, port);
+                session.pipelining = pipelining;
+                try {
+                    session.open(user, password);
+                    return session;
+                } catch (IOException e) {
+                    discard(session);
+                    throw e;
+                }
+            }
+            if (session.isConnected() && (System.currentTimeMillis() - session.lastUsed < keepAliveMillis
+                    || session.noop())) {
+                session.pipelining = pipelining;
+                return session;
+            }
+            discard(session); // stale, try the next one
+        }
+    }
+
+    /**
+     * Hands a session back for reuse. Sessions that are no longer connected are closed instead.
+     */
+    void checkin(FtpSession session){
+        long now = System.currentTimeMillis();
+        session.lastUsed = now;
+        session.idleSince = now;
+        requeue(session);
+    }
+
+    // Puts a session back among the idle ones without changing how long it has been idle
+    private void requeue(FtpSession session){
+        if (!session.isConnected()) {
+            discard(session);
+            return;
+        }
+        synchronized (this) {
+            if (!closed) {
+                idle.computeIfAbsent(key(session.host, session.port, session.user), k -> new ArrayDeque<>())
+                        .addFirst(session);
+                notifyAll();
+                return;
+            }
+        }
+        session.close();
+    }
+
+    /**
+     * Closes a checked out session that should not be reused, e.g. after a protocol error.
+     */
+    void discard(FtpSession session){
+        session.close();
+        synchronized (this) {
+            open.computeIfPresent(key(session.host, session.port, session.user), (k, n) -> n > 1 ? n - 1 : null);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Closes sessions idle past the limit and sends NOOP on the rest of the idle ones that need it.
+     */
+    private void maintain(){
+        List<FtpSession> check = new ArrayList<>();
+        List<FtpSession> evict = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            for (Deque<FtpSession> sessions : idle.values()) {
+                for (Iterator<FtpSession> it = sessions.iterator(); it.hasNext(); ) {
+                    FtpSession session = it.next();
+                    // idle time counts from the last checkin, NOOPs only keep the connection open meanwhile
+                    if (now - session.idleSince >= maxIdleMillis) {
+                        evict.add(session);
+                        it.remove();
+                    } else if (now - session.lastUsed >= keepAliveMillis) {
+                        check.add(session);
+                        it.remove();
+                    }
+                }
+            }
+        }
+        for (FtpSession session : evict) discard(session);
+        for (FtpSession session : check) {
+            if (session.noop()) requeue(session);
+            else discard(session);
+        }
+    }
+
+    /**
+     * Closes every idle session and stops the keep-alive task. Checked out sessions are closed when they
+     * are checked back in.
+     */
+    @Override
+    public void close(){
+        List<FtpSession> sessions = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (Deque<FtpSession> deque : idle.values()) sessions.addAll(deque);
+            idle.clear();
+            notifyAll();
+        }
+        maintenance.shutdownNow();
+        for (FtpSession session : sessions) {
+            try {
+                session.command("QUIT");
+            } catch (IOException e) {
+                // closing anyway
+            }
+            discard(session);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+//
+// Reads a MODE Z data connection: the server sends the file as one zlib
+// stream, and every read inflates whatever has arrived straight into the
+// caller's buffer, so a download is decompressed on the way to the file
+// without ever being held whole in memory.
+//
+
+
+public class InflatingChannel implements ReadableByteChannel
+{
+    static final int INPUT_SIZE = 64 * 1024;
+
+    private final ReadableByteChannel source;
+    private final Inflater inflater = new Inflater();
+    private final ByteBuffer input = ByteBuffer.allocateDirect(INPUT_SIZE);
+    private long bytesIn; // compressed bytes read from the source so far
+
+    InflatingChannel(ReadableByteChannel source){
+        this.source = source;
+        input.flip(); // nothing to inflate yet
+    }
+
+    /**
+     * Inflates into dst, reading more of the compressed stream whenever the inflater runs dry.
+     * @return the number of bytes inflated, or -1 once the stream has ended
+     * @throws EOFException if the connection closes in the middle of the stream
+     * @throws IOException if the stream is not valid zlib data or the connection fails
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) return 0;
+        while (!inflater.finished()) {
+            if (inflater.needsInput()) {
+                input.clear();
+                int read = source.read(input);
+                input.flip();
+                if (read == -1) {
+                    if (bytesIn == 0) return -1; // an empty file sent without any stream at all
+                    throw new EOFException("compressed data ends early");
+                }
+                bytesIn += read;
+                inflater.setInput(input);
+            }
+            try {
+                int inflated = inflater.inflate(dst);
+                if (inflated > 0) return inflated;
+            } catch (DataFormatException e) {
+                throw new IOException("bad compressed data: " + e.getMessage());
+            }
+            if (inflater.needsDictionary()) throw new IOException("bad compressed data: dictionary required");
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of compressed bytes read from the connection so far
+     */
+    long bytesIn(){
+        return bytesIn;
+    }
+
+    @Override
+    public boolean isOpen(){
+        return source.isOpen();
+    }
+
+    /**
+     * Releases the inflater; the data connection is left for its owner to close.
+     */
+    @Override
+    public void close(){
+        inflater.end();
+    }
+}
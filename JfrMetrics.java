@@ -0,0 +1,165 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Frequency;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+//
+// FtpMetrics that emits JDK Flight Recorder events, so commands and transfers
+// show up in a recording next to GC, I/O and thread activity. Start one with
+// java -XX:StartFlightRecording=filename=ftp.jfr -jar BasicFTP.jar ...
+// Events cost next to nothing while no recording is running.
+//
+
+
+public class JfrMetrics implements FtpMetrics
+{
+    @Name("BasicFTP.Command")
+    @Label("FTP Command")
+    @Category("BasicFTP")
+    @StackTrace(false)
+    static class CommandEvent extends Event {
+        @Label("Command")
+        String command;
+
+        @Label("Reply Code")
+        int code;
+
+        @Label("Reply Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long replyTime;
+    }
+
+    @Name("BasicFTP.DataConnect")
+    @Label("FTP Data Connect")
+    @Category("BasicFTP")
+    @StackTrace(false)
+    static class DataConnectEvent extends Event {
+        @Label("Connect Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long connectTime;
+    }
+
+    @Name("BasicFTP.Transfer")
+    @Label("FTP Transfer")
+    @Category("BasicFTP")
+    @StackTrace(false)
+    static class TransferEvent extends Event {
+        @Label("Kind")
+        String kind;
+
+        @Label("Path")
+        String path;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Time To First Byte")
+        @Timespan(Timespan.NANOSECONDS)
+        long firstByte;
+
+        @Label("Transfer Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long transferTime;
+
+        @Label("Throughput")
+        @DataAmount
+        @Frequency
+        long bytesPerSecond;
+    }
+
+    @Name("BasicFTP.SocketTuning")
+    @Label("FTP Socket Tuning")
+    @Category("BasicFTP")
+    @StackTrace(false)
+    static class SocketTuningEvent extends Event {
+        @Label("Kind")
+        String kind;
+
+        @Label("Receive Buffer")
+        @DataAmount
+        int receiveBuffer;
+
+        @Label("Send Buffer")
+        @DataAmount
+        int sendBuffer;
+
+        @Label("Read Chunk")
+        @DataAmount
+        int chunkSize;
+    }
+
+    @Name("BasicFTP.Error")
+    @Label("FTP Error")
+    @Category("BasicFTP")
+    static class ErrorEvent extends Event {
+        @Label("Code")
+        String code;
+
+        @Label("Retry")
+        boolean retry;
+    }
+
+    @Override
+    public void command(String command, int code, long nanos){
+        CommandEvent event = new CommandEvent();
+        if (!event.isEnabled()) return;
+        event.command = command;
+        event.code = code;
+        event.replyTime = nanos;
+        event.commit();
+    }
+
+    @Override
+    public void dataConnect(long nanos){
+        DataConnectEvent event = new DataConnectEvent();
+        if (!event.isEnabled()) return;
+        event.connectTime = nanos;
+        event.commit();
+    }
+
+    @Override
+    public void transfer(String kind, String path, long bytes, long firstByteNanos, long totalNanos){
+        TransferEvent event = new TransferEvent();
+        if (!event.isEnabled()) return;
+        event.kind = kind;
+        event.path = path;
+        event.bytes = bytes;
+        event.firstByte = firstByteNanos;
+        event.transferTime = totalNanos;
+        event.bytesPerSecond = totalNanos == 0 ? 0 : (long) (bytes / (totalNanos / 1e9));
+        event.commit();
+    }
+
+    @Override
+    public void socketTuning(String kind, int receiveBuffer, int sendBuffer, int chunkSize){
+        SocketTuningEvent event = new SocketTuningEvent();
+        if (!event.isEnabled()) return;
+        event.kind = kind;
+        event.receiveBuffer = receiveBuffer;
+        event.sendBuffer = sendBuffer;
+        event.chunkSize = chunkSize;
+        event.commit();
+    }
+
+    @Override
+    public void error(String code){
+        ErrorEvent event = new ErrorEvent();
+        if (!event.isEnabled()) return;
+        event.code = code;
+        event.commit();
+    }
+
+    @Override
+    public void retry(String kind){
+        ErrorEvent event = new ErrorEvent();
+        if (!event.isEnabled()) return;
+        event.code = kind;
+        event.retry = true;
+        event.commit();
+    }
+}
@@ -0,0 +1,206 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+//
+// FtpMetrics that keeps running totals in memory and dumps them as Prometheus
+// text exposition format or as JSON.
+//
+
+
+public class MetricsRegistry implements FtpMetrics
+{
+    // count, sum and maximum of one timed or sized series
+    static class Series {
+        final LongAdder count = new LongAdder();
+        final LongAdder sum = new LongAdder();
+        final AtomicLong max = new AtomicLong();
+
+        void add(long value){
+            count.increment();
+            sum.add(value);
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    // series by metric name and then by label value, e.g. "command_nanos" -> "PASV"
+    private final Map<String, Map<String, Series>> series = new ConcurrentHashMap<>();
+
+    private Series series(String metric, String label){
+        return series.computeIfAbsent(metric, m -> new ConcurrentHashMap<>())
+                .computeIfAbsent(label, l -> new Series());
+    }
+
+    @Override
+    public void command(String command, int code, long nanos){
+        series("command_nanos", command).add(nanos);
+    }
+
+    @Override
+    public void dataConnect(long nanos){
+        series("data_connect_nanos", "").add(nanos);
+    }
+
+    @Override
+    public void transfer(String kind, String path, long bytes, long firstByteNanos, long totalNanos){
+        series("transfer_bytes", kind).add(bytes);
+        series("transfer_nanos", kind).add(totalNanos);
+        if (firstByteNanos >= 0) series("first_byte_nanos", kind).add(firstByteNanos);
+    }
+
+    @Override
+    public void socketTuning(String kind, int receiveBuffer, int sendBuffer, int chunkSize){
+        series("receive_buffer_bytes", kind).add(receiveBuffer);
+        series("send_buffer_bytes", kind).add(sendBuffer);
+        if (chunkSize > 0) series("chunk_bytes", kind).add(chunkSize);
+    }
+
+    @Override
+    public void error(String code){
+        series("errors", code).add(1);
+    }
+
+    @Override
+    public void retry(String kind){
+        series("retries", kind).add(1);
+    }
+
+    // Returns the series of one metric sorted by label
+    private Map<String, Series> sorted(String metric){
+        return new TreeMap<>(series.getOrDefault(metric, new ConcurrentHashMap<>()));
+    }
+
+    /**
+     * Dumps everything in the Prometheus text exposition format. Times are in seconds.
+     */
+    String toPrometheus(){
+        StringBuilder out = new StringBuilder();
+        summary(out, "ftp_command_seconds", "Time from sending a command to its reply.", "command",
+                "command_nanos");
+        summary(out, "ftp_data_connect_seconds", "Time to open a data connection.", null, "data_connect_nanos");
+        summary(out, "ftp_first_byte_seconds", "Time from a transfer command to the first data byte.", "kind",
+                "first_byte_nanos");
+        summary(out, "ftp_transfer_seconds", "Duration of data transfers.", "kind", "transfer_nanos");
+
+        out.append("# HELP ftp_transfer_bytes_total Bytes moved over data connections.\n");
+        out.append("# TYPE ftp_transfer_bytes_total counter\n");
+        for (Map.Entry<String, Series> entry : sorted("transfer_bytes").entrySet()) {
+            out.append("ftp_transfer_bytes_total{kind=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue().sum.sum()).append('\n');
+        }
+        out.append("# HELP ftp_transfer_bytes_per_second Average throughput of data transfers.\n");
+        out.append("# TYPE ftp_transfer_bytes_per_second gauge\n");
+        for (Map.Entry<String, Series> entry : sorted("transfer_bytes").entrySet()) {
+            out.append("ftp_transfer_bytes_per_second{kind=\"").append(entry.getKey()).append("\"} ")
+                    .append(bytesPerSecond(entry.getKey())).append('\n');
+        }
+        gauge(out, "ftp_data_receive_buffer_bytes", "Average SO_RCVBUF of data connections.", "receive_buffer_bytes");
+        gauge(out, "ftp_data_send_buffer_bytes", "Average SO_SNDBUF of data connections.", "send_buffer_bytes");
+        gauge(out, "ftp_read_chunk_bytes", "Average read size data transfers ended with.", "chunk_bytes");
+        counter(out, "ftp_errors_total", "Failed operations by client error code.", "code", "errors");
+        counter(out, "ftp_retries_total", "Operations tried again.", "kind", "retries");
+        return out.toString();
+    }
+
+    /**
+     * Dumps everything as one JSON object. Times are in milliseconds.
+     */
+    String toJson(){
+        StringBuilder out = new StringBuilder("{");
+        String[] timed = {"command_nanos", "data_connect_nanos", "first_byte_nanos", "transfer_nanos"};
+        String[] names = {"commands", "dataConnect", "firstByte", "transfers"};
+        for (int i = 0; i < timed.length; i++) {
+            out.append('"').append(names[i]).append("\":{");
+            String separator = "";
+            for (Map.Entry<String, Series> entry : sorted(timed[i]).entrySet()) {
+                Series value = entry.getValue();
+                out.append(separator).append('"').append(entry.getKey().isEmpty() ? "all" : entry.getKey())
+                        .append("\":{\"count\":").append(value.count.sum())
+                        .append(",\"totalMillis\":").append(value.sum.sum() / 1e6)
+                        .append(",\"maxMillis\":").append(value.max.get() / 1e6).append('}');
+                separator = ",";
+            }
+            out.append("},");
+        }
+        out.append("\"bytes\":{");
+        String separator = "";
+        for (Map.Entry<String, Series> entry : sorted("transfer_bytes").entrySet()) {
+            out.append(separator).append('"').append(entry.getKey()).append("\":{\"total\":")
+                    .append(entry.getValue().sum.sum()).append(",\"perSecond\":")
+                    .append(bytesPerSecond(entry.getKey())).append('}');
+            separator = ",";
+        }
+        out.append("},");
+        String[] sized = {"receive_buffer_bytes", "send_buffer_bytes", "chunk_bytes"};
+        String[] sizeNames = {"receiveBuffer", "sendBuffer", "readChunk"};
+        for (int i = 0; i < sized.length; i++) {
+            out.append('"').append(sizeNames[i]).append("\":{");
+            separator = "";
+            for (Map.Entry<String, Series> entry : sorted(sized[i]).entrySet()) {
+                out.append(separator).append('"').append(entry.getKey()).append("\":{\"average\":")
+                        .append(average(entry.getValue())).append(",\"max\":").append(entry.getValue().max.get())
+                        .append('}');
+                separator = ",";
+            }
+            out.append("},");
+        }
+        counts(out, "errors", "errors");
+        out.append(',');
+        counts(out, "retries", "retries");
+        return out.append('}').toString();
+    }
+
+    // Returns the average throughput of one kind of transfer
+    private long bytesPerSecond(String kind){
+        long nanos = series("transfer_nanos", kind).sum.sum();
+        return nanos == 0 ? 0 : (long) (series("transfer_bytes", kind).sum.sum() / (nanos / 1e9));
+    }
+
+    private void summary(StringBuilder out, String name, String help, String label, String metric){
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" summary\n");
+        for (Map.Entry<String, Series> entry : sorted(metric).entrySet()) {
+            String labels = label == null ? "" : "{" + label + "=\"" + entry.getKey() + "\"}";
+            out.append(name).append("_count").append(labels).append(' ')
+                    .append(entry.getValue().count.sum()).append('\n');
+            out.append(name).append("_sum").append(labels).append(' ')
+                    .append(entry.getValue().sum.sum() / 1e9).append('\n');
+        }
+    }
+
+    // Returns the mean of a series, 0 when it is empty
+    private static long average(Series series){
+        long count = series.count.sum();
+        return count == 0 ? 0 : series.sum.sum() / count;
+    }
+
+    private void gauge(StringBuilder out, String name, String help, String metric){
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        for (Map.Entry<String, Series> entry : sorted(metric).entrySet()) {
+            out.append(name).append("{kind=\"").append(entry.getKey()).append("\"} ")
+                    .append(average(entry.getValue())).append('\n');
+        }
+    }
+
+    private void counter(StringBuilder out, String name, String help, String label, String metric){
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        for (Map.Entry<String, Series> entry : sorted(metric).entrySet()) {
+            out.append(name).append('{').append(label).append("=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue().count.sum()).append('\n');
+        }
+    }
+
+    private void counts(StringBuilder out, String name, String metric){
+        out.append('"').append(name).append("\":{");
+        String separator = "";
+        for (Map.Entry<String, Series> entry : sorted(metric).entrySet()) {
+            out.append(separator).append('"').append(entry.getKey()).append("\":").append(entry.getValue().count.sum());
+            separator = ",";
+        }
+        out.append('}');
+    }
+}
@@ -0,0 +1,109 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+
+//
+// When to try again after a connection fails and how long to wait first.
+// Waits grow exponentially from the base delay up to the maximum, and each one
+// is drawn at random from its upper half, so many sessions dropped by the same
+// server reset do not all come back at the same moment.
+//
+
+
+public class RetryPolicy
+{
+    static final int DEFAULT_ATTEMPTS = 5;
+    static final long DEFAULT_DELAY = 1000;     // milliseconds before the first retry
+    static final long DEFAULT_MAX_DELAY = 60000;
+
+    // tries in all, the first one included; 1 turns retrying off
+    final int attempts;
+    final long delay;
+    final long maxDelay;
+
+    RetryPolicy(){
+        this(DEFAULT_ATTEMPTS, DEFAULT_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    RetryPolicy(int attempts, long delay, long maxDelay){
+        this.attempts = attempts;
+        this.delay = delay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Returns a copy with one setting changed, for the retry command.
+     * @param name  "attempts", "delay" or "maxdelay"
+     * @param value a count of tries, or milliseconds
+     * @return the changed copy, or null if the name or value is not valid
+     */
+    RetryPolicy with(String name, String value){
+        try {
+            long number = Long.parseLong(value);
+            switch (name) {
+                case "attempts":
+                    return number < 1 || number > Integer.MAX_VALUE ? null
+                            : new RetryPolicy((int) number, delay, maxDelay);
+                case "delay":
+                    return number < 0 ? null : new RetryPolicy(attempts, number, Math.max(number, maxDelay));
+                case "maxdelay":
+                    return number < 0 ? null : new RetryPolicy(attempts, Math.min(delay, number), number);
+                default:
+                    return null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if an operation that failed with e on the given try should be tried again. Lost and
+     * timed out connections are worth retrying, and so are 4xx replies, which RFC 959 defines as transient;
+     * 5xx replies, missing local files and interrupts are not.
+     */
+    boolean retries(IOException e, int attempt){
+        return attempt < attempts && isTransient(e);
+    }
+
+    private static boolean isTransient(IOException e){
+        if (e instanceof SocketException || e instanceof EOFException || e instanceof SocketTimeoutException) {
+            return true;
+        }
+        if (e instanceof InterruptedIOException) return false;
+        String reply = e.getMessage();
+        return reply != null && reply.length() >= 3 && reply.charAt(0) == '4'
+                && Character.isDigit(reply.charAt(1)) && Character.isDigit(reply.charAt(2));
+    }
+
+    /**
+     * Returns how long to wait before the try after the given one: a random time in the upper half of
+     * delay * 2^(attempt - 1), capped at maxDelay.
+     */
+    long backoff(int attempt){
+        if (delay == 0) return 0;
+        long ceiling = delay << Math.min(attempt - 1, 30);
+        if (ceiling <= 0 || ceiling > maxDelay) ceiling = maxDelay;
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    /**
+     * Waits out the backoff after the given try.
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    void pause(int attempt) throws InterruptedIOException {
+        try {
+            Thread.sleep(backoff(attempt));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting to retry");
+        }
+    }
+
+    @Override
+    public String toString(){
+        return "attempts " + attempts + ", delay " + delay + " ms, maxdelay " + maxDelay + " ms";
+    }
+}
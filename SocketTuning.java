@@ -0,0 +1,144 @@
+//
+// Socket settings for control and data connections. Data connection buffers
+// are sized from the bandwidth-delay product: the round trip time seen on the
+// control connection times the throughput of earlier transfers from the same
+// host, or the configured link speed before there were any. Reads from a data
+// connection start small and grow while they keep filling up.
+//
+
+
+public class SocketTuning
+{
+    static final int MIN_SOCKET_BUFFER = 64 * 1024;
+    static final int MAX_SOCKET_BUFFER = 16 * 1024 * 1024;
+    static final int DEFAULT_MIN_CHUNK = 16 * 1024;
+    static final long DEFAULT_LINK_SPEED = 125_000_000; // bytes per second, 1 Gbit/s
+
+    // socket buffer sizes that mean "size from the bandwidth-delay product" and "leave to the OS"
+    static final int AUTO = 0;
+    static final int SYSTEM = -1;
+
+    // TCP_NODELAY on control connections, so a command is not held back waiting for the previous reply's ACK
+    final boolean noDelay;
+    // SO_RCVBUF and SO_SNDBUF of data connections in bytes, or AUTO or SYSTEM
+    final int receiveBuffer;
+    final int sendBuffer;
+    // throughput assumed for the bandwidth-delay product before a host has been measured
+    final long linkSpeed;
+    // first read size on a data connection; reads then double while they fill, up to the transfer buffer
+    final int minChunk;
+    // false reads as much as the transfer buffer holds every time
+    final boolean adaptiveChunks;
+
+    SocketTuning(){
+        this(true, AUTO, AUTO, DEFAULT_LINK_SPEED, DEFAULT_MIN_CHUNK, true);
+    }
+
+    SocketTuning(boolean noDelay, int receiveBuffer, int sendBuffer, long linkSpeed, int minChunk,
+                 boolean adaptiveChunks){
+        this.noDelay = noDelay;
+        this.receiveBuffer = receiveBuffer;
+        this.sendBuffer = sendBuffer;
+        this.linkSpeed = linkSpeed;
+        this.minChunk = minChunk;
+        this.adaptiveChunks = adaptiveChunks;
+    }
+
+    /**
+     * Returns a copy with one setting changed, for the tune command.
+     * @param name  "nodelay", "rcvbuf", "sndbuf", "link", "chunk" or "adaptive"
+     * @param value "on"/"off" for switches, a byte count, "auto" or "system" for buffers
+     * @return the changed copy, or null if the name or value is not valid
+     */
+    SocketTuning with(String name, String value){
+        try {
+            switch (name) {
+                case "nodelay":
+                    return new SocketTuning(onOff(value), receiveBuffer, sendBuffer, linkSpeed, minChunk,
+                            adaptiveChunks);
+                case "rcvbuf":
+                    return new SocketTuning(noDelay, bufferSize(value), sendBuffer, linkSpeed, minChunk,
+                            adaptiveChunks);
+                case "sndbuf":
+                    return new SocketTuning(noDelay, receiveBuffer, bufferSize(value), linkSpeed, minChunk,
+                            adaptiveChunks);
+                case "link":
+                    long speed = Long.parseLong(value);
+                    return speed <= 0 ? null
+                            : new SocketTuning(noDelay, receiveBuffer, sendBuffer, speed, minChunk, adaptiveChunks);
+                case "chunk":
+                    int chunk = Integer.parseInt(value);
+                    return chunk <= 0 ? null
+                            : new SocketTuning(noDelay, receiveBuffer, sendBuffer, linkSpeed, chunk, adaptiveChunks);
+                case "adaptive":
+                    return new SocketTuning(noDelay, receiveBuffer, sendBuffer, linkSpeed, minChunk, onOff(value));
+                default:
+                    return null;
+            }
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static boolean onOff(String value){
+        if (value.equals("on")) return true;
+        if (value.equals("off")) return false;
+        throw new IllegalArgumentException(value);
+    }
+
+    private static int bufferSize(String value){
+        if (value.equals("auto")) return AUTO;
+        if (value.equals("system")) return SYSTEM;
+        int size = Integer.parseInt(value);
+        if (size <= 0) throw new IllegalArgumentException(value);
+        return size;
+    }
+
+    /**
+     * Returns the socket buffer to ask for, or SYSTEM to keep the OS default. In AUTO mode the buffer is
+     * the bandwidth-delay product, asked for only when it is larger than the OS default, since a fixed
+     * size also turns off the kernel's own buffer auto-tuning.
+     * @param configured     receiveBuffer or sendBuffer
+     * @param systemDefault  the size the OS gave the socket
+     * @param rttNanos       round trip time to the server, 0 if not known
+     * @param bytesPerSecond throughput seen from the server, 0 if not known
+     */
+    int socketBuffer(int configured, int systemDefault, long rttNanos, long bytesPerSecond){
+        if (configured != AUTO) return configured;
+        if (rttNanos <= 0) return SYSTEM;
+        long bandwidthDelay = (long) ((bytesPerSecond > 0 ? bytesPerSecond : linkSpeed) * (rttNanos / 1e9));
+        int size = (int) Math.max(MIN_SOCKET_BUFFER, Math.min(MAX_SOCKET_BUFFER, bandwidthDelay));
+        return size > systemDefault ? size : SYSTEM;
+    }
+
+    /**
+     * Returns the size of the first read of a transfer using a buffer of the given capacity.
+     */
+    int firstChunk(int capacity){
+        return adaptiveChunks ? Math.min(minChunk, capacity) : capacity;
+    }
+
+    /**
+     * Returns the size of the next read after one of chunk bytes read got the given number of bytes. A full
+     * read means data is waiting faster than it is drained, so the next read is twice the size; reads
+     * under a quarter full halve it again.
+     */
+    int nextChunk(int chunk, int read, int capacity){
+        if (!adaptiveChunks) return chunk;
+        if (read == chunk) return Math.min(capacity, chunk * 2);
+        if (read < chunk / 4) return Math.max(Math.min(minChunk, capacity), chunk / 2);
+        return chunk;
+    }
+
+    // Describes a buffer setting
+    private static String describe(int size){
+        return size == AUTO ? "auto" : size == SYSTEM ? "system" : String.valueOf(size);
+    }
+
+    @Override
+    public String toString(){
+        return "nodelay " + (noDelay ? "on" : "off") + ", rcvbuf " + describe(receiveBuffer) + ", sndbuf "
+                + describe(sendBuffer) + ", link " + linkSpeed + " bytes/s, chunk " + minChunk + ", adaptive "
+                + (adaptiveChunks ? "on" : "off");
+    }
+}
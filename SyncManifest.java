@@ -0,0 +1,256 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+//
+// What the last sync of a directory tree fetched: remote path, size,
+// modification time and the server's checksum if one was asked for, per file.
+// The file is memory mapped and searched in place. Opening it checks that the
+// index is sorted and every record lies whole inside the file, so a damaged
+// manifest is noticed up front instead of failing a lookup half way through.
+//
+// Layout, big endian:
+//   header  "FTPSYNC1", int entry count
+//   index   count * (long path hash, int record offset), sorted by hash
+//   records short path length, path (UTF-8), long size, long modified,
+//           short checksum length, checksum (UTF-8)
+//
+
+
+public class SyncManifest implements Closeable
+{
+    static final String FILE_NAME = ".ftpsync";
+    private static final byte[] MAGIC = "FTPSYNC1".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_SIZE = MAGIC.length + 4;
+    private static final int INDEX_ENTRY_SIZE = 12;
+
+    /**
+     * One file as it was when it was last fetched.
+     */
+    static final class Entry {
+        final String path;     // relative to the synced root, with / separators
+        final long size;
+        final long modified;   // milliseconds since the epoch, -1 if unknown
+        final String checksum; // e.g. "SHA-256:9f86d0...", null if none was asked for
+
+        Entry(String path, long size, long modified, String checksum){
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.checksum = checksum;
+        }
+    }
+
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final int count;
+
+    private SyncManifest(FileChannel channel, MappedByteBuffer map, int count){
+        this.channel = channel;
+        this.map = map;
+        this.count = count;
+    }
+
+    /**
+     * @return a manifest with no files in it, for a first sync or one whose manifest was damaged
+     */
+    static SyncManifest empty(){
+        return new SyncManifest(null, null, 0);
+    }
+
+    /**
+     * Opens the manifest in file. A missing manifest opens as an empty one, so everything is fetched.
+     * @throws IOException if the manifest cannot be read or is damaged
+     */
+    static SyncManifest open(File file) throws IOException {
+        if (!file.exists()) return empty();
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long length = channel.size();
+            if (length < HEADER_SIZE || length > Integer.MAX_VALUE) throw new IOException("bad manifest size");
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            byte[] magic = new byte[MAGIC.length];
+            map.get(0, magic);
+            int count = map.getInt(MAGIC.length);
+            long indexEnd = HEADER_SIZE + (long) count * INDEX_ENTRY_SIZE;
+            if (!Arrays.equals(magic, MAGIC) || count < 0 || indexEnd > length) {
+                throw new IOException("bad manifest header");
+            }
+            long previous = Long.MIN_VALUE;
+            for (int i = 0; i < count; i++) {
+                long hash = map.getLong(HEADER_SIZE + i * INDEX_ENTRY_SIZE);
+                if (hash < previous) throw new IOException("manifest index out of order");
+                previous = hash;
+                checkRecord(map, map.getInt(HEADER_SIZE + i * INDEX_ENTRY_SIZE + 8), indexEnd, length);
+            }
+            return new SyncManifest(channel, map, count);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Throws if the record at offset does not lie whole between the end of the index and the end of the file
+    private static void checkRecord(MappedByteBuffer map, int offset, long start, long end) throws IOException {
+        long at = offset;
+        if (at < start || at + 2 > end) throw new IOException("bad manifest record offset " + offset);
+        at += 2 + (map.getShort((int) at) & 0xFFFF) + 16; // path, size and modified
+        if (at + 2 > end) throw new IOException("manifest record at " + offset + " is cut off");
+        at += 2 + (map.getShort((int) at) & 0xFFFF);      // checksum
+        if (at > end) throw new IOException("manifest record at " + offset + " is cut off");
+    }
+
+    /**
+     * Looks a path up with a binary search over the hash index.
+     * @return the entry, or null if the path is not in the manifest
+     */
+    Entry get(String path){
+        long hash = hash(path);
+        int low = 0, high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long found = map.getLong(HEADER_SIZE + middle * INDEX_ENTRY_SIZE);
+            if (found < hash) {
+                low = middle + 1;
+            } else if (found > hash) {
+                high = middle - 1;
+            } else {
+                // several paths can share a hash, check all of them
+                int first = middle;
+                while (first > 0 && map.getLong(HEADER_SIZE + (first - 1) * INDEX_ENTRY_SIZE) == hash) first--;
+                for (int i = first; i < count && map.getLong(HEADER_SIZE + i * INDEX_ENTRY_SIZE) == hash; i++) {
+                    Entry entry = record(map.getInt(HEADER_SIZE + i * INDEX_ENTRY_SIZE + 8));
+                    if (entry.path.equals(path)) return entry;
+                }
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the entries in any of the given directories or below them. Every record is read, so this is
+     * for the rare run that could not walk part of the tree and has to keep what it knew about that part.
+     * @param directories paths relative to the synced root, "" for the root itself
+     */
+    List<Entry> under(Set<String> directories){
+        List<Entry> found = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Entry entry = record(map.getInt(HEADER_SIZE + i * INDEX_ENTRY_SIZE + 8));
+            for (String parent = parent(entry.path); parent != null; parent = parent(parent)) {
+                if (directories.contains(parent)) {
+                    found.add(entry);
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+
+    // Returns the directory a relative path is in, "" for the root, or null for the root itself
+    private static String parent(String path){
+        if (path.isEmpty()) return null;
+        int slash = path.lastIndexOf('/');
+        return slash < 0 ? "" : path.substring(0, slash);
+    }
+
+    // Reads the record at offset
+    private Entry record(int offset){
+        ByteBuffer record = map.duplicate();
+        record.position(offset);
+        String path = string(record);
+        long size = record.getLong();
+        long modified = record.getLong();
+        String checksum = string(record);
+        return new Entry(path, size, modified, checksum.isEmpty() ? null : checksum);
+    }
+
+    private static String string(ByteBuffer buffer){
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // 64-bit FNV-1a of the path's UTF-16 code units
+    private static long hash(String path){
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < path.length(); i++) {
+            hash ^= path.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Writes a manifest of the given entries next to file and then moves it over file, so an interrupted
+     * write leaves the previous manifest in place. The entries are sorted by hash first, so the records can
+     * be written through the channel in index order and only their offsets are kept until the index, which
+     * goes in front of them, is written last.
+     * @throws IOException if the manifest cannot be written
+     */
+    static void write(File file, Collection<Entry> entries) throws IOException {
+        List<Entry> sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparingLong(entry -> hash(entry.path)));
+        int[] offsets = new int[sorted.size()];
+        long recordsStart = HEADER_SIZE + (long) sorted.size() * INDEX_ENTRY_SIZE;
+
+        File temporary = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(channel.position(recordsStart))));
+            for (int i = 0; i < offsets.length; i++) {
+                long offset = recordsStart + out.size();
+                if (offset > Integer.MAX_VALUE) throw new IOException("manifest too large");
+                offsets[i] = (int) offset;
+                Entry entry = sorted.get(i);
+                writeString(out, entry.path);
+                out.writeLong(entry.size);
+                out.writeLong(entry.modified);
+                writeString(out, entry.checksum == null ? "" : entry.checksum);
+            }
+            out.flush();
+
+            out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel.position(0))));
+            out.write(MAGIC);
+            out.writeInt(offsets.length);
+            for (int i = 0; i < offsets.length; i++) {
+                out.writeLong(hash(sorted.get(i).path));
+                out.writeInt(offsets[i]);
+            }
+            out.flush();
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) throw new IOException("path too long for the manifest: " + value);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Closes the file; the mapping itself goes away once it is garbage collected.
+     */
+    public void close(){
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException e) {
+            // read only, nothing to lose
+        }
+    }
+}
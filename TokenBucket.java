@@ -0,0 +1,74 @@
+import java.io.InterruptedIOException;
+
+//
+// A token bucket rate limiter for bytes. Tokens come in at the configured
+// rate and collect up to one burst; taking more than there are puts the bucket
+// in debt and the taker waits until the debt is paid off. The rate can be
+// changed at any time, which also wakes up anyone waiting.
+//
+
+
+public class TokenBucket
+{
+    // a burst is this fraction of a second at the current rate
+    static final int BURSTS_PER_SECOND = 20;
+    static final int MIN_BURST = 16 * 1024;
+
+    private long rate;      // bytes per second, 0 for no limit
+    private double tokens;  // may go negative while a taker waits for its bytes
+    private long refilledAt = System.nanoTime();
+
+    TokenBucket(long rate){
+        this.rate = rate;
+        this.tokens = burst(rate);
+    }
+
+    private static long burst(long rate){
+        return Math.max(MIN_BURST, rate / BURSTS_PER_SECOND);
+    }
+
+    /**
+     * Changes the rate; 0 removes the limit. Waiting takers are woken up to wait according to the new rate.
+     */
+    synchronized void setRate(long rate){
+        refill();
+        this.rate = rate;
+        tokens = Math.min(tokens, burst(rate));
+        notifyAll();
+    }
+
+    /**
+     * @return the most bytes worth taking at once, so a read does not run far ahead of the rate;
+     *         Integer.MAX_VALUE when there is no limit
+     */
+    synchronized int burst(){
+        return rate == 0 ? Integer.MAX_VALUE : (int) Math.min(Integer.MAX_VALUE, burst(rate));
+    }
+
+    // Adds the tokens earned since the last refill
+    private void refill(){
+        long now = System.nanoTime();
+        if (rate > 0) tokens = Math.min(burst(rate), tokens + (now - refilledAt) * rate / 1e9);
+        refilledAt = now;
+    }
+
+    /**
+     * Takes bytes worth of tokens, waiting while the bucket is in debt.
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    synchronized void take(long bytes) throws InterruptedIOException {
+        refill();
+        if (rate == 0) return;
+        tokens -= bytes;
+        while (rate > 0 && tokens < 0) {
+            long waitNanos = (long) (-tokens * 1e9 / rate);
+            try {
+                wait(Math.max(1, waitNanos / 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while throttled");
+            }
+            refill();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+//
+// A checksum computed over the bytes of a transfer as they are written, so a
+// downloaded file never has to be read back to be verified. Values look like
+// the ones FtpSession.checksum returns, "SHA-256:9f86d0...", and are compared
+// with the server's HASH/XCRC/XMD5 answer or with a local sidecar file.
+//
+
+
+public class TransferChecksum
+{
+    // sidecar file extensions and the algorithm each one holds, checked in this order
+    static final String[][] SIDECARS = {
+        {".sha256", "SHA-256"}, {".sha512", "SHA-512"}, {".sha1", "SHA-1"}, {".md5", "MD5"},
+        {".crc32c", "CRC32C"}, {".crc32", "CRC32"},
+    };
+
+    private final String algorithm;
+    private final MessageDigest digest; // for SHA and MD5
+    private final Checksum checksum;    // for CRC32 and CRC32C
+
+    private TransferChecksum(String algorithm, MessageDigest digest, Checksum checksum){
+        this.algorithm = algorithm;
+        this.digest = digest;
+        this.checksum = checksum;
+    }
+
+    /**
+     * Returns a new checksum for the algorithm of an expected value such as "SHA-256:9f86d0...", or null if
+     * the algorithm is not one this client can compute.
+     */
+    static TransferChecksum forValue(String expected){
+        if (expected == null || expected.indexOf(':') < 0) return null;
+        String algorithm = expected.substring(0, expected.indexOf(':')).toUpperCase(Locale.ROOT);
+        switch (algorithm) {
+            case "CRC32":
+                return new TransferChecksum(algorithm, null, new CRC32());
+            case "CRC32C":
+                return new TransferChecksum(algorithm, null, new CRC32C());
+            default:
+                try {
+                    return new TransferChecksum(algorithm, MessageDigest.getInstance(algorithm), null);
+                } catch (NoSuchAlgorithmException e) {
+                    return null;
+                }
+        }
+    }
+
+    /**
+     * Adds the remaining bytes of buffer without moving its position.
+     */
+    void update(ByteBuffer buffer){
+        ByteBuffer bytes = buffer.duplicate();
+        if (digest != null) digest.update(bytes);
+        else checksum.update(bytes);
+    }
+
+    /**
+     * Adds the first length bytes of a local file, for the part of a resumed download that came earlier.
+     * @throws IOException if the file cannot be read
+     */
+    void update(File file, long length, ByteBuffer buffer) throws IOException {
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long position = 0;
+            while (position < length) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), length - position));
+                int read = in.read(buffer, position);
+                if (read < 0) throw new EOFException(file.getPath());
+                buffer.flip();
+                update(buffer);
+                position += read;
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * @return the algorithm and the hex value of everything added so far, e.g. "CRC32:1C291CA3"
+     */
+    String value(){
+        if (digest != null) {
+            StringBuilder hex = new StringBuilder(algorithm).append(':');
+            for (byte b : digest.digest()) hex.append(String.format("%02x", b));
+            return hex.toString();
+        }
+        return algorithm + ":" + String.format("%08X", checksum.getValue());
+    }
+
+    /**
+     * Returns true if two checksum values name the same algorithm and digest; hex case does not matter.
+     */
+    static boolean matches(String value, String expected){
+        return value != null && expected != null && value.equalsIgnoreCase(expected);
+    }
+
+    /**
+     * Reads the expected checksum of a local file from a sidecar next to it, e.g. "nums.txt.sha256" in
+     * sha256sum format ("hex  name") or holding just the hex value.
+     * @return the value, e.g. "SHA-256:9f86d0...", or null if there is no readable sidecar
+     */
+    static String sidecar(File localFile){
+        for (String[] sidecar : SIDECARS) {
+            File file = new File(localFile.getPath() + sidecar[0]);
+            if (!file.isFile()) continue;
+            try {
+                String content = new String(Files.readAllBytes(file.toPath())).trim();
+                if (content.isEmpty()) continue;
+                return sidecar[1] + ":" + content.split("\\s+")[0];
+            } catch (IOException e) {
+                // unreadable, try the next kind
+            }
+        }
+        return null;
+    }
+}
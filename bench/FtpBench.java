@@ -0,0 +1,229 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+//
+// Benchmarks for the client against LoopbackFtpServer. Each benchmark runs a
+// few warm-up iterations before the measured ones and reports the mean time
+// per operation and the throughput.
+//
+// Usage: java FtpBench [-latency ms] [-bandwidth bytes/s] [-sizes 1K,1M,64M]
+//                      [-entries n] [-endpoints n] [-iterations n] [-only name]
+// "make bench" builds and runs it with the defaults.
+//
+
+
+public class FtpBench
+{
+    static final int WARMUPS = 3;
+
+    // results are accumulated here so the JIT cannot drop the measured work
+    static long sink;
+
+    interface Body {
+        // Runs one operation and returns the units of work done (bytes, replies, entries)
+        long run() throws Exception;
+    }
+
+    static int iterations = 10;
+    static String only;
+
+    public static void main(String[] args) throws Exception {
+        long latency = 0;
+        long bandwidth = 0;
+        String sizes = "1K,1M,64M";
+        int entries = 100000;
+        int endpoints = 200;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-latency": latency = Long.parseLong(args[i + 1]); break;
+                case "-bandwidth": bandwidth = Long.parseLong(args[i + 1]); break;
+                case "-sizes": sizes = args[i + 1]; break;
+                case "-entries": entries = Integer.parseInt(args[i + 1]); break;
+                case "-endpoints": endpoints = Integer.parseInt(args[i + 1]); break;
+                case "-iterations": iterations = Integer.parseInt(args[i + 1]); break;
+                case "-only": only = args[i + 1]; break;
+                default:
+                    System.out.println("Usage: FtpBench [-latency ms] [-bandwidth bytes/s] [-sizes 1K,1M,64M]"
+                            + " [-entries n] [-endpoints n] [-iterations n] [-only name]");
+                    return;
+            }
+        }
+
+        benchReplyParsing();
+
+        try (LoopbackFtpServer server = new LoopbackFtpServer()) {
+            server.latencyMillis = latency;
+            server.bytesPerSecond = bandwidth;
+            benchConnect(server, false);
+            benchConnect(server, true);
+            for (String size : sizes.split(",")) benchGet(server, size);
+            benchDir(server, entries);
+            benchEngine(server, endpoints);
+        }
+        System.out.println("(sink " + sink + ")");
+    }
+
+    /**
+     * Runs body WARMUPS times unmeasured and then the configured number of times measured, and prints the
+     * mean and spread per operation with the throughput in units per second.
+     */
+    static void measure(String name, String unit, Body body) throws Exception {
+        if (only != null && !name.startsWith(only)) return;
+        for (int i = 0; i < WARMUPS; i++) sink += body.run();
+        long[] times = new long[iterations];
+        long units = 0;
+        for (int i = 0; i < iterations; i++) {
+            long started = System.nanoTime();
+            units += body.run();
+            times[i] = System.nanoTime() - started;
+        }
+        double total = 0;
+        for (long time : times) total += time;
+        double mean = total / iterations;
+        double variance = 0;
+        for (long time : times) variance += (time - mean) * (time - mean);
+        double deviation = Math.sqrt(variance / iterations);
+        double perSecond = units / (total / 1e9);
+        System.out.printf("%-28s %12.3f ms/op  +- %8.3f  %14.1f %s/s%n", name, mean / 1e6, deviation / 1e6,
+                perSecond, unit);
+        sink += units;
+    }
+
+    // ---- control reply parsing ----
+
+    // A mix of replies as a server sends them: single-line, multi-line FEAT and PASV
+    static byte[] replyStream(int count){
+        StringBuilder replies = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            switch (i % 4) {
+                case 0: replies.append("200 Command okay.\r\n"); break;
+                case 1: replies.append("227 Entering Passive Mode (127,0,0,1,195,").append(i % 256).append(").\r\n"); break;
+                case 2: replies.append("211-Features:\r\n MDTM\r\n REST STREAM\r\n SIZE\r\n MLST type*;size*;modify*;\r\n"
+                        + " UTF8\r\n211 End\r\n"); break;
+                default: replies.append("150 Opening BINARY mode data connection for file-1M (1048576 bytes).\r\n"); break;
+            }
+        }
+        return replies.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static void benchReplyParsing() throws Exception {
+        int count = 100000;
+        byte[] stream = replyStream(count);
+        measure("reply-parse FtpReply", "replies", () -> {
+            FtpReply.Reader reader = new FtpReply.Reader(new ByteArrayInputStream(stream));
+            long replies = 0;
+            FtpReply reply;
+            while ((reply = reader.readReply()) != null) {
+                sink += reply.code;
+                if (reply.code == 227) sink += FtpReply.parsePassive(reply.last()).getPort();
+                replies++;
+            }
+            return replies;
+        });
+        measure("reply-parse split (old)", "replies", () -> {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(stream)));
+            long replies = 0;
+            String line;
+            while ((line = legacyReadReply(reader)) != null) {
+                sink += line.length();
+                if (line.split(" ")[0].equals("227")) sink += legacyPassivePort(line);
+                replies++;
+            }
+            return replies;
+        });
+    }
+
+    // The split based multi-line detection BasicFTP.handleServerResponse used before FtpReply
+    static String legacyReadReply(BufferedReader in) throws IOException {
+        String fromServer;
+        if ((fromServer = in.readLine()) == null) return null;
+        String[] firstLine = fromServer.split(" ");
+        if (firstLine[0].length() != 3) {
+            String responseCode = fromServer.split("-")[0];
+            while ((fromServer = in.readLine()) != null) {
+                if (fromServer.split(" ")[0].equals(responseCode)) break;
+            }
+        }
+        return fromServer;
+    }
+
+    // The split based PASV parsing handleDir and handleGet used before FtpReply
+    static int legacyPassivePort(String fromServer){
+        String ipAndHost = fromServer.split("\\(")[1];
+        String[] arguments = ipAndHost.split(",");
+        arguments[5] = arguments[5].split("\\)")[0];
+        return (Integer.parseInt(arguments[4]) * 256) + Integer.parseInt(arguments[5]);
+    }
+
+    // ---- against the loopback server ----
+
+    static void benchConnect(LoopbackFtpServer server, boolean pipelining) throws Exception {
+        measure("connect+login" + (pipelining ? " pipelined" : ""), "sessions", () -> {
+            FtpSession session = new FtpSession(server.host(), server.port());
+            session.pipelining = pipelining;
+            session.open("bench", "bench");
+            session.command("QUIT");
+            session.close();
+            return 1;
+        });
+    }
+
+    static void benchGet(LoopbackFtpServer server, String size) throws Exception {
+        Path target = Files.createTempFile("ftpbench", ".bin");
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BasicFTP.TRANSFER_BUF_SIZE);
+        FtpSession session = new FtpSession(server.host(), server.port());
+        session.open("bench", "bench");
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE)) {
+            measure("get " + size, "bytes", () -> {
+                out.truncate(0);
+                return session.retrieve("file-" + size, 0, -1, out, buffer, null);
+            });
+        } finally {
+            session.close();
+            Files.deleteIfExists(target);
+        }
+    }
+
+    static void benchDir(LoopbackFtpServer server, int entries) throws Exception {
+        FtpSession session = new FtpSession(server.host(), server.port());
+        session.open("bench", "bench");
+        try {
+            FtpSession.expect(session.cd("/list-" + entries), "250");
+            // listing the working directory bypasses the listing cache
+            measure("dir " + entries + " entries", "entries", () -> session.list(null).size());
+        } finally {
+            session.close();
+        }
+    }
+
+    // Every logged in user is its own pool key, so each one stands in for a separate endpoint
+    static void benchEngine(LoopbackFtpServer server, int endpoints) throws Exception {
+        Path directory = Files.createTempDirectory("ftpbench");
+        FtpEngine.Endpoint[] targets = new FtpEngine.Endpoint[endpoints];
+        for (int i = 0; i < endpoints; i++) {
+            targets[i] = new FtpEngine.Endpoint(server.host(), server.port(), "bench" + i, "bench");
+        }
+        try (FtpEngine engine = new FtpEngine(1, 60000, 60000, FtpEngine.DEFAULT_THREADS)) {
+            String name = "engine " + endpoints + " endpoints" + (engine.usesVirtualThreads() ? " (virtual)" : "");
+            measure(name, "files", () -> {
+                List<CompletableFuture<Long>> results = new ArrayList<>();
+                for (int i = 0; i < endpoints; i++) {
+                    results.add(engine.retrieve(targets[i], "file-1K", directory.resolve("f" + i).toFile()));
+                }
+                for (CompletableFuture<Long> result : results) sink += result.join();
+                return endpoints;
+            });
+        } finally {
+            for (int i = 0; i < endpoints; i++) Files.deleteIfExists(directory.resolve("f" + i));
+            Files.delete(directory);
+        }
+    }
+}
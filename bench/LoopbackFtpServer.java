@@ -0,0 +1,274 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+//
+// A small in-process ftp server on the loopback interface for benchmarks.
+// It serves a synthetic file system instead of real files:
+//   /file-<n>    a file of n bytes (n may end in K, M or G)
+//   /list-<n>    a directory with n files in it
+// Every reply can be delayed to stand in for network latency, and data
+// connections can be paced to a bandwidth limit.
+//
+// Commands: USER PASS CWD PWD FEAT TYPE PASV LIST RETR REST SIZE MDTM NOOP QUIT
+//
+
+
+public class LoopbackFtpServer implements Closeable
+{
+    static final String MODIFIED = "20260101000000";
+    static final int CHUNK = 64 * 1024;
+
+    private final ServerSocket listener;
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    volatile long latencyMillis;      // delay between a command arriving and its reply
+    volatile long bytesPerSecond;     // data connection limit, 0 for none
+
+    LoopbackFtpServer() throws IOException {
+        listener = new ServerSocket(0, 200, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::acceptLoop, "loopback-ftp");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int port(){
+        return listener.getLocalPort();
+    }
+
+    String host(){
+        return listener.getInetAddress().getHostAddress();
+    }
+
+    private void acceptLoop(){
+        while (running.get()) {
+            try {
+                Socket control = listener.accept();
+                Thread thread = new Thread(() -> serve(control), "loopback-ftp-session");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                return; // listener closed
+            }
+        }
+    }
+
+    /**
+     * Returns the size of a synthetic file name such as "file-4M", or -1 if it is not one.
+     */
+    static long sizeOf(String name){
+        int dash = name.lastIndexOf("file-");
+        if (dash < 0) return -1;
+        String size = name.substring(dash + 5);
+        long unit = 1;
+        if (size.endsWith("K")) unit = 1L << 10;
+        else if (size.endsWith("M")) unit = 1L << 20;
+        else if (size.endsWith("G")) unit = 1L << 30;
+        if (unit > 1) size = size.substring(0, size.length() - 1);
+        try {
+            return Long.parseLong(size) * unit;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Returns the number of entries of a synthetic directory such as "list-10000", or -1 if it is not one
+    private static int entriesOf(String directory){
+        int dash = directory.lastIndexOf("list-");
+        if (dash < 0) return -1;
+        try {
+            return Integer.parseInt(directory.substring(dash + 5));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void serve(Socket control){
+        String directory = "/";
+        ServerSocket passive = null;
+        long restart = 0;
+        try (Socket socket = control;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                     StandardCharsets.UTF_8));
+             Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+            socket.setTcpNoDelay(true);
+            long arrived = System.nanoTime();
+            reply(out, arrived, "220 loopback ftp ready");
+
+            // commands are read and time stamped on their own thread, so a command pipelined behind another
+            // one keeps the time it really arrived rather than the time it was processed
+            BlockingQueue<Object[]> commands = new LinkedBlockingQueue<>();
+            Thread reader = new Thread(() -> {
+                try {
+                    String read;
+                    while ((read = in.readLine()) != null) commands.add(new Object[] {System.nanoTime(), read});
+                } catch (IOException e) {
+                    // connection closed
+                }
+                commands.add(new Object[] {System.nanoTime(), null});
+            }, "loopback-ftp-reader");
+            reader.setDaemon(true);
+            reader.start();
+
+            String line;
+            while (true) {
+                Object[] next = commands.take();
+                arrived = (Long) next[0];
+                line = (String) next[1];
+                if (line == null) break;
+                int space = line.indexOf(' ');
+                String command = (space < 0 ? line : line.substring(0, space)).toUpperCase();
+                String argument = space < 0 ? "" : line.substring(space + 1);
+                String path = argument.startsWith("/") ? argument
+                        : directory.endsWith("/") ? directory + argument : directory + "/" + argument;
+                switch (command) {
+                    case "USER":
+                        reply(out, arrived, "331 password please");
+                        break;
+                    case "PASS":
+                        reply(out, arrived, "230 logged in");
+                        break;
+                    case "NOOP":
+                    case "TYPE":
+                        reply(out, arrived, "200 ok");
+                        break;
+                    case "FEAT":
+                        reply(out, arrived, "211-Features:\r\n SIZE\r\n MDTM\r\n REST STREAM\r\n211 End");
+                        break;
+                    case "PWD":
+                        reply(out, arrived, "257 \"" + directory + "\"");
+                        break;
+                    case "CWD":
+                        if (argument.equals("/") || entriesOf(path) >= 0) {
+                            directory = argument.equals("/") ? "/" : path;
+                            reply(out, arrived, "250 ok");
+                        } else {
+                            reply(out, arrived, "550 no such directory");
+                        }
+                        break;
+                    case "SIZE":
+                        if (sizeOf(path) >= 0) reply(out, arrived, "213 " + sizeOf(path));
+                        else reply(out, arrived, "550 no such file");
+                        break;
+                    case "MDTM":
+                        if (sizeOf(path) >= 0) reply(out, arrived, "213 " + MODIFIED);
+                        else reply(out, arrived, "550 no such file");
+                        break;
+                    case "REST":
+                        restart = Long.parseLong(argument.trim());
+                        reply(out, arrived, "350 restarting at " + restart);
+                        break;
+                    case "PASV":
+                        if (passive != null) passive.close();
+                        passive = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                        int port = passive.getLocalPort();
+                        reply(out, arrived, "227 Entering Passive Mode (127,0,0,1," + (port / 256) + "," + (port % 256) + ")");
+                        break;
+                    case "LIST":
+                        int entries = entriesOf(argument.isEmpty() || argument.startsWith("-") ? directory : path);
+                        if (passive == null || entries < 0) {
+                            reply(out, arrived, "550 cannot list");
+                            break;
+                        }
+                        reply(out, arrived, "150 here comes the listing");
+                        try (Socket data = passive.accept(); Writer dataOut = new BufferedWriter(
+                                new OutputStreamWriter(data.getOutputStream(), StandardCharsets.UTF_8), CHUNK)) {
+                            for (int i = 0; i < entries; i++) {
+                                dataOut.write("-rw-r--r--   1 ftp      ftp          1024 Jan 01 00:00 n" + i
+                                        + "-file-1K\r\n");
+                            }
+                        }
+                        passive.close();
+                        passive = null;
+                        reply(out, arrived, "226 listing sent");
+                        break;
+                    case "RETR":
+                        long size = sizeOf(path);
+                        if (passive == null || size < 0) {
+                            reply(out, arrived, "550 cannot send");
+                            break;
+                        }
+                        reply(out, arrived, "150 opening data connection");
+                        boolean complete;
+                        try (Socket data = passive.accept()) {
+                            complete = send(data.getOutputStream(), Math.max(0, size - restart));
+                        }
+                        passive.close();
+                        passive = null;
+                        restart = 0;
+                        reply(out, arrived, complete ? "226 transfer complete" : "426 transfer aborted");
+                        break;
+                    case "QUIT":
+                        reply(out, arrived, "221 bye");
+                        return;
+                    default:
+                        reply(out, arrived, "502 not implemented");
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            // client went away
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                if (passive != null) passive.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+
+    // Sends one reply once the configured latency has passed since its command arrived, so pipelined
+    // commands overlap their delays the way they would on a real link
+    private void reply(Writer out, long arrived, String reply) throws IOException {
+        long wait = arrived + latencyMillis * 1_000_000L - System.nanoTime();
+        if (latencyMillis > 0 && wait > 0) {
+            try {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        out.write(reply + "\r\n");
+        out.flush();
+    }
+
+    /**
+     * Writes size bytes of filler, paced to the bandwidth limit.
+     * @return false if the client closed the data connection early
+     */
+    private boolean send(OutputStream out, long size){
+        byte[] chunk = new byte[CHUNK];
+        for (int i = 0; i < chunk.length; i++) chunk[i] = (byte) i;
+        long started = System.nanoTime();
+        long sent = 0;
+        try {
+            while (sent < size) {
+                int length = (int) Math.min(chunk.length, size - sent);
+                out.write(chunk, 0, length);
+                sent += length;
+                long limit = bytesPerSecond;
+                if (limit > 0) {
+                    long due = started + sent * 1_000_000_000L / limit;
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running.set(false);
+        listener.close();
+    }
+}
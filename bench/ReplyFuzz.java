@@ -0,0 +1,341 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+//
+// Randomised checks of the control reply parser. Streams of random single and
+// multi-line replies, with CRLF or bare LF line ends, are fed to FtpReply.Reader
+// in random sized pieces so lines and line ends are split across reads and
+// across the reader's buffer, and what comes out is compared with what went in.
+// PASV and EPSV replies are generated in the forms servers send them, broken in
+// known ways, and mutated at random; the parsers must return the right address,
+// reject the broken ones and never throw.
+//
+// Usage: java ReplyFuzz [-seed n] [-iterations n]
+// "make fuzz" builds and runs it; the seed is printed so a failure can be rerun.
+//
+
+
+public class ReplyFuzz
+{
+    static final String TEXT = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 -.,;:()|=*/\"'\u00e9\u20ac";
+
+    static Random random;
+    static int failures;
+
+    public static void main(String[] args) throws Exception {
+        long seed = System.nanoTime();
+        int iterations = 10000;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-seed": seed = Long.parseLong(args[i + 1]); break;
+                case "-iterations": iterations = Integer.parseInt(args[i + 1]); break;
+                default:
+                    System.out.println("Usage: ReplyFuzz [-seed n] [-iterations n]");
+                    return;
+            }
+        }
+        System.out.println("seed " + seed + ", " + iterations + " iterations");
+        random = new Random(seed);
+
+        for (int i = 0; i < iterations && failures < 10; i++) {
+            checkReplyStream();
+            checkTruncatedReply();
+            checkPassive();
+            checkMalformedPassive();
+            checkExtendedPassive();
+            checkMalformedExtendedPassive();
+        }
+        if (failures > 0) {
+            System.out.println(failures + " failures");
+            System.exit(1);
+        }
+        System.out.println("ok");
+    }
+
+    static void fail(String check, String input, Object got){
+        failures++;
+        System.out.println("FAIL " + check + ": " + printable(input) + " -> " + got);
+    }
+
+    static String printable(String s){
+        return s.replace("\r", "\\r").replace("\n", "\\n");
+    }
+
+    // ---- reply framing ----
+
+    /**
+     * Hands out a byte array in pieces of random size, from one byte to a little more than the reader's
+     * buffer, the way a socket hands out whatever has arrived.
+     */
+    static class ChoppedInputStream extends InputStream {
+        private final byte[] bytes;
+        private int position;
+
+        ChoppedInputStream(byte[] bytes){
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read(){
+            return position < bytes.length ? bytes[position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length){
+            if (position >= bytes.length) return -1;
+            int piece = random.nextInt(4) == 0 ? 1 + random.nextInt(9000) : 1 + random.nextInt(16);
+            int count = Math.min(Math.min(piece, length), bytes.length - position);
+            System.arraycopy(bytes, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+    }
+
+    static String randomText(int maxLength){
+        // now and then a line longer than the reader's buffer, so it has to grow
+        int length = random.nextInt(50) == 0 ? 8000 + random.nextInt(12000) : random.nextInt(maxLength + 1);
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) text.append(TEXT.charAt(random.nextInt(TEXT.length())));
+        return text.toString();
+    }
+
+    static String lineEnd(){
+        return random.nextBoolean() ? "\r\n" : "\n";
+    }
+
+    // Returns true if line, inside a multi-line reply with the given code, would end it
+    static boolean endsReply(String line, int code){
+        return FtpReply.parseCode(line) == code && (line.length() == 3 || line.charAt(3) == ' ');
+    }
+
+    // Builds a random reply as the lines the parser should return
+    static List<String> randomReply(){
+        int code = 100 + random.nextInt(500);
+        List<String> lines = new ArrayList<>();
+        if (random.nextInt(3) != 0) {
+            lines.add(random.nextInt(10) == 0 ? String.valueOf(code) : code + " " + randomText(60));
+            return lines;
+        }
+        lines.add(code + "-" + randomText(60));
+        int middle = random.nextInt(6);
+        for (int i = 0; i < middle; i++) {
+            String line;
+            switch (random.nextInt(4)) {
+                // lines that look like replies but do not end this one
+                case 0: line = code + "-" + randomText(20); break;
+                case 1: line = (100 + random.nextInt(500)) + " " + randomText(20); break;
+                case 2: line = " " + randomText(40); break;
+                default: line = randomText(40); break;
+            }
+            if (endsReply(line, code)) line = " " + line;
+            lines.add(line);
+        }
+        lines.add(random.nextInt(10) == 0 ? String.valueOf(code) : code + " " + randomText(60));
+        return lines;
+    }
+
+    static void checkReplyStream() throws IOException {
+        List<List<String>> replies = new ArrayList<>();
+        StringBuilder stream = new StringBuilder();
+        int count = 1 + random.nextInt(8);
+        for (int i = 0; i < count; i++) {
+            List<String> reply = randomReply();
+            replies.add(reply);
+            for (String line : reply) stream.append(line).append(lineEnd());
+        }
+        // the last line of the stream may end without a line end
+        if (random.nextInt(4) == 0) stream.setLength(stream.length() - (stream.charAt(stream.length() - 2) == '\r' ? 2 : 1));
+        String input = stream.toString();
+
+        FtpReply.Reader reader = new FtpReply.Reader(new ChoppedInputStream(input.getBytes(StandardCharsets.UTF_8)));
+        try {
+            for (List<String> expected : replies) {
+                FtpReply reply = reader.readReply();
+                if (reply == null || reply.code != Integer.parseInt(expected.get(0).substring(0, 3))
+                        || !reply.lines.equals(expected)) {
+                    fail("framing", input, reply == null ? null : reply.lines);
+                    return;
+                }
+            }
+            FtpReply extra = reader.readReply();
+            if (extra != null) fail("framing end", input, extra.lines);
+        } catch (IOException e) {
+            fail("framing", input, e);
+        }
+    }
+
+    static void checkTruncatedReply(){
+        // a multi-line reply cut off before its last line, or a line without a code
+        List<String> reply = randomReply();
+        String input;
+        boolean multiLine = reply.size() > 1;
+        if (multiLine) {
+            StringBuilder stream = new StringBuilder();
+            for (String line : reply.subList(0, 1 + random.nextInt(reply.size() - 1))) {
+                stream.append(line).append(lineEnd());
+            }
+            input = stream.toString();
+        } else {
+            input = randomText(3).replaceAll("^[0-9]+", "") + "x" + randomText(20) + lineEnd();
+        }
+        FtpReply.Reader reader = new FtpReply.Reader(new ChoppedInputStream(input.getBytes(StandardCharsets.UTF_8)));
+        try {
+            FtpReply parsed = reader.readReply();
+            fail(multiLine ? "truncated" : "no code", input, parsed.lines);
+        } catch (EOFException e) {
+            if (!multiLine) fail("no code", input, e);
+        } catch (IOException e) {
+            if (multiLine) fail("truncated", input, e);
+        }
+    }
+
+    // ---- PASV ----
+
+    // Text around the address: none of it may hold digits, which would be read as part of the address
+    static String words(){
+        String[] words = { "", "Entering Passive Mode", "Entering Passive Mode.", "=", "ok", "Passive mode on" };
+        return words[random.nextInt(words.length)];
+    }
+
+    static String comma(){
+        switch (random.nextInt(4)) {
+            case 0: return " ,";
+            case 1: return ", ";
+            default: return ",";
+        }
+    }
+
+    static String passiveLine(int[] numbers){
+        StringBuilder address = new StringBuilder();
+        for (int i = 0; i < numbers.length; i++) {
+            if (i > 0) address.append(comma());
+            address.append(numbers[i]);
+        }
+        String before = words();
+        switch (random.nextInt(3)) {
+            case 0: return "227 " + before + " (" + address + ")" + (random.nextBoolean() ? "." : "");
+            case 1: return "227 " + before + " " + address + (random.nextBoolean() ? "." : " " + words());
+            default: return "227 " + before + address;
+        }
+    }
+
+    static int[] randomAddress(){
+        int[] numbers = new int[6];
+        for (int i = 0; i < 6; i++) numbers[i] = random.nextInt(256);
+        return numbers;
+    }
+
+    static void checkPassive(){
+        int[] numbers = randomAddress();
+        String line = passiveLine(numbers);
+        InetSocketAddress address = FtpReply.parsePassive(line);
+        String ip = numbers[0] + "." + numbers[1] + "." + numbers[2] + "." + numbers[3];
+        if (address == null || !address.getHostString().equals(ip) || address.getPort() != numbers[4] * 256 + numbers[5]) {
+            fail("227", line, address);
+        }
+        checkMutated(line);
+    }
+
+    static void checkMalformedPassive(){
+        int[] numbers = randomAddress();
+        String line;
+        switch (random.nextInt(6)) {
+            case 0: // too few numbers
+                line = passiveLine(java.util.Arrays.copyOf(numbers, random.nextInt(6)));
+                break;
+            case 1: // a number over 255
+                numbers[random.nextInt(6)] = 256 + random.nextInt(744);
+                line = passiveLine(numbers);
+                break;
+            case 2: // a number with four digits
+                line = passiveLine(numbers).replaceFirst("(\\d+)", "1000");
+                break;
+            case 3: // separated by something other than commas
+                line = passiveLine(numbers).replace(",", random.nextBoolean() ? "." : ";");
+                break;
+            case 4: // not a 227
+                line = (200 + random.nextInt(27)) + passiveLine(numbers).substring(3);
+                break;
+            default: // nothing after the code
+                line = random.nextBoolean() ? "227" : "227 Entering Passive Mode";
+                break;
+        }
+        InetSocketAddress address = FtpReply.parsePassive(line);
+        if (address != null) fail("malformed 227", line, address);
+    }
+
+    // Changes, inserts or deletes a few characters, or cuts the line short
+    static String mutate(String line){
+        StringBuilder mutated = new StringBuilder(line);
+        int changes = 1 + random.nextInt(3);
+        for (int i = 0; i < changes && mutated.length() > 0; i++) {
+            int at = random.nextInt(mutated.length());
+            char c = TEXT.charAt(random.nextInt(TEXT.length()));
+            switch (random.nextInt(4)) {
+                case 0: mutated.setCharAt(at, c); break;
+                case 1: mutated.insert(at, c); break;
+                case 2: mutated.deleteCharAt(at); break;
+                default: mutated.setLength(at); break;
+            }
+        }
+        return mutated.toString();
+    }
+
+    // Whatever a mutated reply says, the parsers must not throw and must not return an impossible port
+    static void checkMutated(String line){
+        String mutated = mutate(line);
+        try {
+            InetSocketAddress address = FtpReply.parsePassive(mutated);
+            if (address != null && (address.getPort() < 0 || address.getPort() > 65535)) fail("mutated 227", mutated, address);
+            int port = FtpReply.parseExtendedPassive(mutated);
+            if (port < -1 || port > 65535) fail("mutated 229", mutated, port);
+            FtpReply.parseCode(mutated);
+        } catch (RuntimeException e) {
+            fail("mutated", mutated, e);
+        }
+    }
+
+    // ---- EPSV ----
+
+    static char delimiter(){
+        // RFC 2428 allows any printable ASCII character; digits would be ambiguous with the port
+        char c;
+        do {
+            c = (char) (33 + random.nextInt(94));
+        } while (Character.isDigit(c));
+        return c;
+    }
+
+    static String extendedPassiveLine(char d, String port){
+        return "229 " + words() + " (" + d + d + d + port + d + ")" + (random.nextBoolean() ? "." : "");
+    }
+
+    static void checkExtendedPassive(){
+        int expected = random.nextInt(65536);
+        String line = extendedPassiveLine(delimiter(), String.valueOf(expected));
+        int port = FtpReply.parseExtendedPassive(line);
+        if (port != expected) fail("229", line, port);
+        checkMutated(line);
+    }
+
+    static void checkMalformedExtendedPassive(){
+        char d = delimiter();
+        String port = String.valueOf(random.nextInt(65536));
+        String line;
+        switch (random.nextInt(7)) {
+            case 0: line = "229 " + words() + " " + d + d + d + port + d; break;          // no parenthesis
+            case 1: line = "229 " + words() + " (" + d + d + port + d + ")"; break;       // two delimiters
+            case 2: line = extendedPassiveLine(d, String.valueOf(65536 + random.nextInt(34464))); break;
+            case 3: line = extendedPassiveLine(d, "0" + (100000 + random.nextInt(900000))); break;
+            case 4: line = extendedPassiveLine(d, ""); break;                               // no port
+            case 5: line = "229 " + words() + " (" + d + d + d + port; break;              // not closed
+            default: line = (200 + random.nextInt(29)) + extendedPassiveLine(d, port).substring(3); break;
+        }
+        int parsed = FtpReply.parseExtendedPassive(line);
+        if (parsed != -1) fail("malformed 229", line, parsed);
+    }
+}